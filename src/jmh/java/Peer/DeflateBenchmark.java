@@ -0,0 +1,123 @@
+package Peer;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+// Sends and receives one piece through DeflateTransfer for data that compresses well (log lines and
+// CSV rows) and data that doesn't, at a few levels. Level 0 stores every block, which is the cost of
+// the framing alone. The wireBytes counter over the ops gives the ratio next to the throughput.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DeflateBenchmark {
+    private static final int PIECE = SwarmDownload.PIECE_SIZE;
+
+    @Param({ "log", "csv", "random" })
+    String data;
+
+    @Param({ "0", "1", "6" })
+    int level;
+
+    private Path file;
+    private byte[] encoded;
+    private final byte[] block = new byte[DeflateTransfer.BLOCK_SIZE];
+
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    @State(Scope.Thread)
+    public static class Wire {
+        public long wireBytes;
+    }
+
+    @Setup
+    public void setUp() throws IOException {
+        byte[] content = generate(data);
+        file = Files.createTempFile("deflate-bench", ".bin");
+        Files.write(file, content);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        DeflateTransfer.send(file.toFile(), 0, PIECE, new DataOutputStream(out), sent -> {
+        }, Throttle.UNLIMITED, level);
+        encoded = out.toByteArray();
+    }
+
+    private static byte[] generate(String kind) {
+        Random random = new Random(42);
+        StringBuilder text = new StringBuilder(PIECE + 256);
+        byte[] bytes = new byte[PIECE];
+        switch (kind) {
+            case "log":
+                String[] levels = { "INFO", "INFO", "INFO", "WARN", "DEBUG", "ERROR" };
+                for (long t = 1700000000000L; text.length() < PIECE; t += random.nextInt(50)) {
+                    text.append(t).append(' ').append(levels[random.nextInt(levels.length)])
+                            .append(" [worker-").append(random.nextInt(16)).append("] Peer.SwarmDownload - piece ")
+                            .append(random.nextInt(4096)).append(" from 10.0.").append(random.nextInt(4)).append('.')
+                            .append(random.nextInt(256)).append(" in ").append(random.nextInt(900)).append(" ms\n");
+                }
+                break;
+            case "csv":
+                for (int row = 0; text.length() < PIECE; row++) {
+                    text.append(row).append(',').append("2024-05-").append(10 + random.nextInt(20)).append(',')
+                            .append(random.nextInt(100000)).append(',').append(random.nextGaussian()).append(',')
+                            .append(random.nextBoolean() ? "shipped" : "pending").append('\n');
+                }
+                break;
+            default:
+                random.nextBytes(bytes);
+                return bytes;
+        }
+        byte[] ascii = text.toString().getBytes();
+        System.arraycopy(ascii, 0, bytes, 0, PIECE);
+        return bytes;
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(file);
+    }
+
+    @Benchmark
+    public long send(Wire wire) throws IOException {
+        CountingStream out = new CountingStream();
+        long sent = DeflateTransfer.send(file.toFile(), 0, PIECE, new DataOutputStream(out), done -> {
+        }, Throttle.UNLIMITED, level);
+        wire.wireBytes += out.count;
+        return sent;
+    }
+
+    @Benchmark
+    public int receive() throws IOException {
+        DeflateTransfer.Reader reader = new DeflateTransfer.Reader(
+                new DataInputStream(new ByteArrayInputStream(encoded)));
+        int received = 0;
+        while (received < PIECE) {
+            received += reader.read(block, PIECE - received);
+        }
+        return received;
+    }
+
+    private static final class CountingStream extends OutputStream {
+        long count;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+}
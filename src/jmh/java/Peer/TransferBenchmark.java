@@ -0,0 +1,105 @@
+package Peer;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+// One peer serves a file over loopback through handleUploadRequest and a swarm download fetches it
+// piece by piece, as `get` would with a single source. The request benchmarks compare a connection per
+// request with a kept session, which is what many small files from one peer come down to.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TransferBenchmark {
+    private static final String FILE = "bench.bin";
+    private static final int PORT = 17385;
+
+    @Param({ "1048576", "16777216", "134217728" })
+    long size;
+
+    @Param({ "true", "false" })
+    boolean zeroCopy;
+
+    private Path dir;
+    private Path output;
+    private ExecutorService uploads;
+    private Thread server;
+    private InetSocketAddress source;
+    private SessionPool sessions;
+
+    @Setup
+    public void setUp() throws IOException, InterruptedException {
+        dir = Files.createTempDirectory("transfer-bench");
+        Path file = dir.resolve(FILE);
+        byte[] block = new byte[1 << 20];
+        try (RandomAccessFile out = new RandomAccessFile(file.toFile(), "rw")) {
+            for (long written = 0; written < size; written += block.length) {
+                ThreadLocalRandom.current().nextBytes(block);
+                out.write(block, 0, (int) Math.min(block.length, size - written));
+            }
+        }
+        output = Files.createDirectories(dir.resolve("downloads")).resolve(FILE);
+        Peer peer = new Peer();
+        peer.addSharedFile(FILE, file.toFile());
+        peer.setZeroCopy(zeroCopy);
+        uploads = Executors.newCachedThreadPool();
+        server = new Thread(new FileServer(PORT, peer::handleUploadRequest, uploads), "bench-file-server");
+        server.setDaemon(true);
+        server.start();
+        source = new InetSocketAddress(InetAddress.getLoopbackAddress(), PORT);
+        awaitServer();
+        sessions = new SessionPool(false);
+    }
+
+    private void awaitServer() throws InterruptedException {
+        for (int attempt = 0; attempt < 50; attempt++) {
+            try {
+                SessionPool.ONE_SHOT.call(source, session -> SwarmDownload.requestSize(session, FILE));
+                return;
+            } catch (IOException e) {
+                Thread.sleep(100);
+            }
+        }
+        throw new IllegalStateException("File server didn't start on port " + PORT);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        server.interrupt();
+        uploads.shutdownNow();
+        try (Stream<Path> files = Files.walk(dir)) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @Benchmark
+    public boolean swarmDownload() throws IOException {
+        return new SwarmDownload(FILE, Collections.singletonList(source), output, null, done -> {
+        }).run();
+    }
+
+    @Benchmark
+    public long requestOneShot() throws IOException {
+        return SessionPool.ONE_SHOT.call(source, session -> SwarmDownload.requestSize(session, FILE));
+    }
+
+    @Benchmark
+    public long requestOverSession() throws IOException {
+        return sessions.call(source, session -> SwarmDownload.requestSize(session, FILE));
+    }
+}
@@ -0,0 +1,287 @@
+package Tracker;
+
+import Common.TrackerProtocol;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+// Tracker hot paths without sockets or the CLI. Peers get addresses in 127.0.0.0/8 so a health
+// sweep never leaves the machine.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = { "-Xmx4g", "-Dtracker.wal.sync=false", "-Dtracker.host=127.0.0.1" })
+public class TrackerBenchmark {
+    private static final String FILE = "bench.bin";
+    private static final InetSocketAddress SENDER = new InetSocketAddress(InetAddress.getLoopbackAddress(), 7000);
+
+    static Tracker newTracker(Path dir) {
+        System.setProperty("tracker.data.dir", dir.toString());
+        Tracker tracker = new Tracker(16881, 16882, Collections.emptyList());
+        tracker.recover();
+        return tracker;
+    }
+
+    static InetAddress peerAddress(int i) throws UnknownHostException {
+        return InetAddress.getByAddress(new byte[] { 127, (byte) (i >> 16), (byte) (i >> 8), (byte) i });
+    }
+
+    static void register(Tracker tracker, int peers) throws UnknownHostException {
+        for (int i = 0; i < peers; i++) {
+            tracker.registerFile(peerAddress(i), 7000, 20000 + i % 40000, 7003, FILE, 20000 + i % 40000, null,
+                    false);
+        }
+    }
+
+    static void delete(Path dir) throws IOException {
+        try (Stream<Path> files = Files.walk(dir)) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class Messages {
+        Path dir;
+        Tracker tracker;
+        ByteBuffer textGet;
+        ByteBuffer textShare;
+        ByteBuffer textInvalid;
+        ByteBuffer binaryGet;
+        ByteBuffer binaryShare;
+        ByteBuffer binaryKeepalive;
+
+        @Setup
+        public void setUp() throws IOException {
+            dir = Files.createTempDirectory("tracker-bench");
+            tracker = newTracker(dir);
+            register(tracker, 32);
+            textGet = text("get " + FILE);
+            textShare = text("share " + FILE + " 127.0.0.1 7000 7001 7002");
+            textInvalid = text("hello tracker");
+            binaryGet = ByteBuffer.allocate(TrackerProtocol.MAX_DATAGRAM);
+            TrackerProtocol.putHeader(binaryGet, TrackerProtocol.OP_GET, 1);
+            TrackerProtocol.putString(binaryGet, FILE);
+            TrackerProtocol.putString(binaryGet, "");
+            binaryGet.flip();
+            binaryShare = ByteBuffer.allocate(TrackerProtocol.MAX_DATAGRAM);
+            TrackerProtocol.putHeader(binaryShare, TrackerProtocol.OP_SHARE, 2);
+            binaryShare.putShort((short) 7001);
+            binaryShare.putShort((short) 7002);
+            binaryShare.putShort((short) 1);
+            TrackerProtocol.putString(binaryShare, FILE);
+            TrackerProtocol.putHash(binaryShare, null);
+            binaryShare.flip();
+            // a renewal with nothing to change, from a peer registered above
+            binaryKeepalive = ByteBuffer.allocate(TrackerProtocol.MAX_DATAGRAM);
+            TrackerProtocol.putHeader(binaryKeepalive, TrackerProtocol.OP_KEEPALIVE, 3);
+            binaryKeepalive.putShort((short) 20001).putShort((short) 7003);
+            binaryKeepalive.putShort((short) 1).putShort((short) 8).putLong(1 << 20);
+            binaryKeepalive.putShort((short) 0).putShort((short) 0);
+            binaryKeepalive.flip();
+        }
+
+        private static ByteBuffer text(String message) {
+            return ByteBuffer.wrap(message.getBytes(StandardCharsets.UTF_8));
+        }
+
+        @TearDown
+        public void tearDown() throws IOException {
+            delete(dir);
+        }
+    }
+
+    // one tracker for all threads; the peers the senders below pose as are registered up front
+    @State(Scope.Benchmark)
+    public static class Shared {
+        static final int THREADS = 8;
+        final AtomicInteger senders = new AtomicInteger();
+        Path dir;
+        Tracker tracker;
+
+        @Setup
+        public void setUp() throws IOException {
+            dir = Files.createTempDirectory("tracker-bench");
+            tracker = newTracker(dir);
+            register(tracker, THREADS + 1);
+        }
+
+        @TearDown
+        public void tearDown() throws IOException {
+            delete(dir);
+        }
+    }
+
+    // each thread speaks for its own peer, so the threads meet on the tracker's locks rather than on one
+    // peer's entry
+    @State(Scope.Thread)
+    public static class Sender {
+        InetSocketAddress address;
+        ByteBuffer get;
+        ByteBuffer share;
+        ByteBuffer keepalive;
+
+        @Setup
+        public void setUp(Shared shared) throws IOException {
+            int i = shared.senders.incrementAndGet();
+            address = new InetSocketAddress(peerAddress(i), 7000);
+            get = ByteBuffer.allocate(TrackerProtocol.MAX_DATAGRAM);
+            TrackerProtocol.putHeader(get, TrackerProtocol.OP_GET, 1);
+            TrackerProtocol.putString(get, FILE);
+            TrackerProtocol.putString(get, "");
+            get.flip();
+            share = ByteBuffer.allocate(TrackerProtocol.MAX_DATAGRAM);
+            TrackerProtocol.putHeader(share, TrackerProtocol.OP_SHARE, 2);
+            share.putShort((short) (20000 + i)).putShort((short) 7003);
+            share.putShort((short) 1);
+            TrackerProtocol.putString(share, FILE);
+            TrackerProtocol.putHash(share, null);
+            share.flip();
+            keepalive = ByteBuffer.allocate(TrackerProtocol.MAX_DATAGRAM);
+            TrackerProtocol.putHeader(keepalive, TrackerProtocol.OP_KEEPALIVE, 3);
+            keepalive.putShort((short) (20000 + i)).putShort((short) 7003);
+            keepalive.putShort((short) 1).putShort((short) 8).putLong(1 << 20);
+            keepalive.putShort((short) 0).putShort((short) 0);
+            keepalive.flip();
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class Lookup {
+        @Param({ "1000", "100000", "1000000" })
+        int peers;
+        Path dir;
+        Tracker tracker;
+
+        @Setup
+        public void setUp() throws IOException {
+            dir = Files.createTempDirectory("tracker-bench");
+            tracker = newTracker(dir);
+            register(tracker, peers);
+        }
+
+        @TearDown
+        public void tearDown() throws IOException {
+            delete(dir);
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class Sweep {
+        @Param({ "1000", "100000" })
+        int peers;
+        Path dir;
+        DatagramChannel channel;
+        PeerProber prober;
+
+        @Setup
+        public void setUp() throws IOException {
+            dir = Files.createTempDirectory("tracker-bench");
+            Tracker tracker = newTracker(dir);
+            Map<String, Tracker.PeerInfo> known = new ConcurrentHashMap<>();
+            for (int i = 0; i < peers; i++) {
+                // nothing listens on the ping port, and nobody is evicted because probes never time out here
+                known.put(String.valueOf(i), tracker.new PeerInfo(peerAddress(i), 7000, 7001, 9));
+            }
+            channel = DatagramChannel.open();
+            channel.configureBlocking(false);
+            channel.bind(null);
+            prober = new PeerProber(known, (peerKey, probedSince) -> {
+            }, 20000, 2000, 3);
+            prober.init(channel, System.currentTimeMillis());
+        }
+
+        @TearDown
+        public void tearDown() throws IOException {
+            channel.close();
+            delete(dir);
+        }
+    }
+
+    private static Tracker.Reply handle(Messages state, ByteBuffer message) {
+        message.rewind();
+        return state.tracker.handlePeerMessage(message, SENDER);
+    }
+
+    @Benchmark
+    public Object textGet(Messages state) {
+        return handle(state, state.textGet);
+    }
+
+    @Benchmark
+    public Object textShare(Messages state) {
+        return handle(state, state.textShare);
+    }
+
+    @Benchmark
+    public Object textInvalid(Messages state) {
+        return handle(state, state.textInvalid);
+    }
+
+    @Benchmark
+    public Object binaryGet(Messages state) {
+        return handle(state, state.binaryGet);
+    }
+
+    @Benchmark
+    public Object binaryShare(Messages state) {
+        return handle(state, state.binaryShare);
+    }
+
+    @Benchmark
+    public Object binaryKeepalive(Messages state) {
+        return handle(state, state.binaryKeepalive);
+    }
+
+    private static Tracker.Reply handle(Shared shared, Sender sender, ByteBuffer message) {
+        message.rewind();
+        return shared.tracker.handlePeerMessage(message, sender.address);
+    }
+
+    @Benchmark
+    @Threads(Shared.THREADS)
+    public Object contendedGet(Shared shared, Sender sender) {
+        return handle(shared, sender, sender.get);
+    }
+
+    @Benchmark
+    @Threads(Shared.THREADS)
+    public Object contendedShare(Shared shared, Sender sender) {
+        return handle(shared, sender, sender.share);
+    }
+
+    @Benchmark
+    @Threads(Shared.THREADS)
+    public Object contendedKeepalive(Shared shared, Sender sender) {
+        return handle(shared, sender, sender.keepalive);
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public String getPeersWithFile(Lookup state) {
+        return state.tracker.getPeersWithFile(FILE);
+    }
+
+    // includes forgetting the probes again, so the next sweep sends to everyone
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public void healthSweep(Sweep state) {
+        state.prober.sweep();
+        state.prober.cancelAll();
+    }
+}
@@ -0,0 +1,231 @@
+package Common;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
+
+public class EventLog {
+    private static final DateTimeFormatter DATE_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss")
+            .withZone(ZoneId.systemDefault());
+    private static final int SPILL_QUEUE_SIZE = 8192;
+
+    public enum Type {
+        SHARE, GET, ACK, EVICT, DOWNLOAD, INFO
+    }
+
+    public static final class Event {
+        private final long seq;
+        private final long timestamp;
+        private final Type type;
+        private final String ip;
+        private final String file;
+        private final String detail;
+
+        private Event(long seq, long timestamp, Type type, String ip, String file, String detail) {
+            this.seq = seq;
+            this.timestamp = timestamp;
+            this.type = type;
+            this.ip = ip;
+            this.file = file;
+            this.detail = detail;
+        }
+
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+        public Type getType() {
+            return type;
+        }
+
+        public String getIp() {
+            return ip;
+        }
+
+        public String getFile() {
+            return file;
+        }
+
+        public String getDetail() {
+            return detail;
+        }
+
+        // formatting is deferred until someone actually reads the event
+        public String format() {
+            StringBuilder builder = new StringBuilder(64);
+            builder.append('[').append(DATE_FORMAT.format(Instant.ofEpochMilli(timestamp))).append("] ")
+                    .append(type);
+            if (ip != null) {
+                builder.append(" ip:").append(ip);
+            }
+            if (file != null) {
+                builder.append(" file:").append(file);
+            }
+            if (detail != null) {
+                builder.append(' ').append(detail);
+            }
+            return builder.toString();
+        }
+
+        @Override
+        public String toString() {
+            return format();
+        }
+    }
+
+    private final Event[] ring;
+    private final Map<String, ArrayDeque<Event>> byIp = new HashMap<>();
+    private final Map<String, ArrayDeque<Event>> byFile = new HashMap<>();
+    private long nextSeq;
+    private final BlockingQueue<Event> spillQueue;
+    private final LongAdder spillDropped = new LongAdder();
+
+    public EventLog(int capacity) {
+        this(capacity, null, 0, 0);
+    }
+
+    public EventLog(int capacity, Path spillFile, long maxSpillBytes, int maxSpillFiles) {
+        this.ring = new Event[capacity];
+        if (spillFile == null) {
+            this.spillQueue = null;
+            return;
+        }
+        this.spillQueue = new ArrayBlockingQueue<>(SPILL_QUEUE_SIZE);
+        Thread writer = new Thread(() -> spill(spillFile, maxSpillBytes, maxSpillFiles), "event-log-spill");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    // spills to the file named by the given system property, if it is set
+    public static EventLog fromSystemProperty(int capacity, String property) {
+        String spillFile = System.getProperty(property);
+        if (spillFile == null || spillFile.isEmpty()) {
+            return new EventLog(capacity);
+        }
+        return new EventLog(capacity, Paths.get(spillFile), 16L << 20, 4);
+    }
+
+    public void record(Type type, String ip, String file, String detail) {
+        if (ip != null && ip.startsWith("/")) {
+            ip = ip.substring(1);
+        }
+        Event event;
+        synchronized (this) {
+            event = new Event(nextSeq, System.currentTimeMillis(), type, ip, file, detail);
+            int slot = (int) (nextSeq++ % ring.length);
+            Event evicted = ring[slot];
+            if (evicted != null) {
+                unindex(byIp, evicted.ip);
+                unindex(byFile, evicted.file);
+            }
+            ring[slot] = event;
+            index(byIp, event.ip, event);
+            index(byFile, event.file, event);
+        }
+        if (spillQueue != null && !spillQueue.offer(event)) {
+            spillDropped.increment();
+        }
+    }
+
+    public synchronized List<Event> all() {
+        int size = (int) Math.min(nextSeq, ring.length);
+        List<Event> events = new ArrayList<>(size);
+        for (long seq = nextSeq - size; seq < nextSeq; seq++) {
+            events.add(ring[(int) (seq % ring.length)]);
+        }
+        return events;
+    }
+
+    public synchronized List<Event> byIp(String ip) {
+        ArrayDeque<Event> events = byIp.get(ip.startsWith("/") ? ip.substring(1) : ip);
+        return events == null ? Collections.emptyList() : new ArrayList<>(events);
+    }
+
+    public synchronized List<Event> byFile(String file) {
+        ArrayDeque<Event> events = byFile.get(file);
+        return events == null ? Collections.emptyList() : new ArrayList<>(events);
+    }
+
+    public synchronized int size() {
+        return (int) Math.min(nextSeq, ring.length);
+    }
+
+    public long getSpillDropped() {
+        return spillDropped.sum();
+    }
+
+    private static void index(Map<String, ArrayDeque<Event>> index, String key, Event event) {
+        if (key != null) {
+            index.computeIfAbsent(key, k -> new ArrayDeque<>()).addLast(event);
+        }
+    }
+
+    // events leave the ring oldest first, so the evicted one is always at the head of its index queue
+    private static void unindex(Map<String, ArrayDeque<Event>> index, String key) {
+        if (key == null) {
+            return;
+        }
+        ArrayDeque<Event> events = index.get(key);
+        if (events != null) {
+            events.pollFirst();
+            if (events.isEmpty()) {
+                index.remove(key);
+            }
+        }
+    }
+
+    private void spill(Path file, long maxBytes, int maxFiles) {
+        Writer writer = null;
+        long written = 0;
+        try {
+            while (true) {
+                Event event = spillQueue.take();
+                if (writer == null || written >= maxBytes) {
+                    if (writer != null) {
+                        writer.close();
+                        roll(file, maxFiles);
+                    }
+                    writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8, StandardOpenOption.CREATE,
+                            StandardOpenOption.APPEND);
+                    written = Files.size(file);
+                }
+                String line = event.format() + System.lineSeparator();
+                writer.write(line);
+                written += line.length();
+                if (spillQueue.isEmpty()) {
+                    writer.flush();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            System.out.println("Event log spill stopped: " + e.getMessage());
+        } finally {
+            if (writer != null) {
+                try {
+                    writer.close();
+                } catch (IOException e) {
+                    // nothing left to do
+                }
+            }
+        }
+    }
+
+    private static void roll(Path file, int maxFiles) throws IOException {
+        for (int i = maxFiles - 1; i >= 1; i--) {
+            Path from = file.resolveSibling(file.getFileName() + "." + i);
+            if (Files.exists(from)) {
+                Files.move(from, file.resolveSibling(file.getFileName() + "." + (i + 1)),
+                        StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+        Files.move(file, file.resolveSibling(file.getFileName() + ".1"), StandardCopyOption.REPLACE_EXISTING);
+    }
+}
@@ -0,0 +1,161 @@
+package Common;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+// Binary datagram encoding shared by Tracker and Peer. Every packet starts with
+// MAGIC, VERSION, an op code and a request id; text messages never start with MAGIC.
+public final class TrackerProtocol {
+    public static final byte MAGIC = (byte) 0xB7;
+    // 2 pages peer lists by the last peer key sent rather than by position
+    public static final byte VERSION = 2;
+    public static final int MAX_DATAGRAM = 1400;
+    public static final int HEADER_SIZE = 7;
+
+    public static final byte OP_SHARE = 0x01;
+    public static final byte OP_GET = 0x02;
+    public static final byte OP_ACK = 0x03;
+    public static final byte OP_KEEPALIVE = 0x04;
+    public static final byte OP_SHARE_REPLY = (byte) 0x81;
+    public static final byte OP_PEERS = (byte) 0x82;
+    public static final byte OP_NOT_FOUND = (byte) 0x83;
+    public static final byte OP_ACK_REPLY = (byte) 0x84;
+    public static final byte OP_KEEPALIVE_REPLY = (byte) 0x85;
+    public static final byte OP_ERROR = (byte) 0x8F;
+
+    public static final byte STATUS_OK = 0;
+    public static final byte STATUS_CONFLICT = 1;
+    // keepalive from a peer the tracker holds nothing for; it should announce its files again
+    public static final byte STATUS_UNKNOWN = 2;
+
+    private static final int MAX_STRING = 255;
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private TrackerProtocol() {
+    }
+
+    public static boolean isBinary(ByteBuffer buffer) {
+        return buffer.remaining() >= HEADER_SIZE && buffer.get(buffer.position()) == MAGIC;
+    }
+
+    public static void putHeader(ByteBuffer buffer, byte op, int requestId) {
+        buffer.put(MAGIC).put(VERSION).put(op).putInt(requestId);
+    }
+
+    public static void putString(ByteBuffer buffer, String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > MAX_STRING) {
+            throw new IllegalArgumentException("String too long for protocol: " + value);
+        }
+        buffer.put((byte) bytes.length).put(bytes);
+    }
+
+    public static String getString(ByteBuffer buffer) {
+        int length = buffer.get() & 0xff;
+        if (buffer.hasArray()) {
+            String value = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length,
+                    StandardCharsets.UTF_8);
+            buffer.position(buffer.position() + length);
+            return value;
+        }
+        int limit = buffer.limit();
+        buffer.limit(buffer.position() + length);
+        String value = StandardCharsets.UTF_8.decode(buffer).toString();
+        buffer.limit(limit);
+        return value;
+    }
+
+    public static int stringSize(String value) {
+        return 1 + value.getBytes(StandardCharsets.UTF_8).length;
+    }
+
+    // hashes travel as raw bytes but are kept as hex strings everywhere else
+    public static void putHash(ByteBuffer buffer, String hex) {
+        if (hex == null) {
+            buffer.put((byte) 0);
+            return;
+        }
+        if (hex.isEmpty() || hex.length() % 2 != 0 || hex.length() / 2 > MAX_STRING) {
+            throw new IllegalArgumentException("Hash doesn't fit the protocol: " + hex);
+        }
+        buffer.put((byte) (hex.length() / 2));
+        for (int i = 0; i < hex.length(); i += 2) {
+            int high = hexDigit(hex.charAt(i));
+            int low = hexDigit(hex.charAt(i + 1));
+            if (high < 0 || low < 0) {
+                throw new IllegalArgumentException("Hash isn't hex: " + hex);
+            }
+            buffer.put((byte) ((high << 4) | low));
+        }
+    }
+
+    // a root hash is a SHA-256 in lowercase hex, the way peers print it and getHash reads it back
+    public static boolean isRootHash(String hex) {
+        if (hex.length() != 64) {
+            return false;
+        }
+        for (int i = 0; i < hex.length(); i++) {
+            char c = hex.charAt(i);
+            if ((c < '0' || c > '9') && (c < 'a' || c > 'f')) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // ASCII only, unlike Character.digit, so what is checked is what gets encoded
+    private static int hexDigit(char c) {
+        if (c >= '0' && c <= '9') {
+            return c - '0';
+        }
+        if (c >= 'a' && c <= 'f') {
+            return c - 'a' + 10;
+        }
+        if (c >= 'A' && c <= 'F') {
+            return c - 'A' + 10;
+        }
+        return -1;
+    }
+
+    public static String getHash(ByteBuffer buffer) {
+        int length = buffer.get() & 0xff;
+        if (length == 0) {
+            return null;
+        }
+        char[] hex = new char[length * 2];
+        for (int i = 0; i < length; i++) {
+            int b = buffer.get() & 0xff;
+            hex[i * 2] = HEX[b >>> 4];
+            hex[i * 2 + 1] = HEX[b & 0xf];
+        }
+        return new String(hex);
+    }
+
+    public static int hashSize(String hex) {
+        return 1 + (hex == null ? 0 : hex.length() / 2);
+    }
+
+    public static void putAddress(ByteBuffer buffer, InetAddress address, int port) {
+        byte[] bytes = address.getAddress();
+        buffer.put((byte) bytes.length).put(bytes).putShort((short) port);
+    }
+
+    public static InetSocketAddress getAddress(ByteBuffer buffer) throws UnknownHostException {
+        byte[] bytes = new byte[buffer.get() & 0xff];
+        buffer.get(bytes);
+        int port = buffer.getShort() & 0xffff;
+        return new InetSocketAddress(InetAddress.getByAddress(bytes), port);
+    }
+
+    public static int addressSize(InetAddress address) {
+        return address instanceof Inet4Address ? 7 : 19;
+    }
+
+    public static int getPort(ByteBuffer buffer) {
+        return buffer.getShort() & 0xffff;
+    }
+}
@@ -0,0 +1,262 @@
+package Peer;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongConsumer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+// Moves a range of a file as blocks that are each either deflated or stored as they are. The start of
+// every block is deflated first as a sample, and a block whose sample doesn't shrink goes out stored
+// without compressing the rest, so archives and media cost little CPU. A compressor thread works a few
+// blocks ahead of the socket, so deflating one block overlaps with writing the one before.
+//
+// A block is a type byte and the raw length, then for a deflated block the deflated length, then the
+// bytes.
+final class DeflateTransfer {
+    static final int BLOCK_SIZE = 64 * 1024;
+    private static final int STORED = 0;
+    private static final int DEFLATED = 1;
+    private static final int SAMPLE_SIZE = 4096;
+    // a sample or block deflated to more than this share of its size goes out stored
+    private static final double WORTHWHILE = 0.9;
+    private static final int AHEAD = 4;
+    private static final int LEVEL = Integer.getInteger("peer.compress.level", Deflater.BEST_SPEED);
+    private static final BlockingQueue<Deflater> deflaters = new ArrayBlockingQueue<>(16);
+    private static final BlockingQueue<Inflater> inflaters = new ArrayBlockingQueue<>(16);
+    private static final BlockingQueue<Block> blockPool = new ArrayBlockingQueue<>(64);
+    private static final ExecutorService compressors = Executors.newCachedThreadPool(r -> {
+        Thread thread = new Thread(r, "compressor");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private static final AtomicLong rawSent = new AtomicLong();
+    private static final AtomicLong wireSent = new AtomicLong();
+    private static final AtomicLong rawReceived = new AtomicLong();
+    private static final AtomicLong wireReceived = new AtomicLong();
+
+    private static final class Block {
+        final byte[] raw = new byte[BLOCK_SIZE];
+        final byte[] wire = new byte[BLOCK_SIZE];
+        int rawLength;
+        int wireLength;
+        boolean deflated;
+        IOException failure;
+    }
+
+    private DeflateTransfer() {
+    }
+
+    static long send(File file, long offset, long count, DataOutputStream dos, LongConsumer progress,
+            Throttle.Limiter limiter) throws IOException {
+        return send(file, offset, count, dos, progress, limiter, LEVEL);
+    }
+
+    // writes count bytes from offset as blocks; returns fewer only if the file shrank
+    static long send(File file, long offset, long count, DataOutputStream dos, LongConsumer progress,
+            Throttle.Limiter limiter, int level) throws IOException {
+        BlockingQueue<Block> free = new ArrayBlockingQueue<>(AHEAD + 1);
+        BlockingQueue<Block> ready = new ArrayBlockingQueue<>(AHEAD + 1);
+        for (int i = 0; i <= AHEAD; i++) {
+            Block block = blockPool.poll();
+            free.add(block == null ? new Block() : block);
+        }
+        boolean done = false;
+        Future<?> producer = compressors.submit(() -> produce(file, offset, count, level, free, ready));
+        try {
+            long sent = 0;
+            while (sent < count) {
+                Block block = ready.take();
+                if (block.failure != null) {
+                    if (block.failure instanceof EOFException) {
+                        dos.flush();
+                        return sent;
+                    }
+                    throw block.failure;
+                }
+                int length = block.deflated ? block.wireLength : block.rawLength;
+                limiter.acquire(length);
+                dos.writeByte(block.deflated ? DEFLATED : STORED);
+                dos.writeInt(block.rawLength);
+                if (block.deflated) {
+                    dos.writeInt(block.wireLength);
+                    dos.write(block.wire, 0, block.wireLength);
+                } else {
+                    dos.write(block.raw, 0, block.rawLength);
+                }
+                sent += block.rawLength;
+                rawSent.addAndGet(block.rawLength);
+                wireSent.addAndGet(length);
+                progress.accept(sent);
+                free.add(block);
+            }
+            dos.flush();
+            done = true;
+            return sent;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted sending " + file.getName());
+        } finally {
+            producer.cancel(true);
+            // after a failure the compressor may still hold a block, so only a finished transfer gives them back
+            if (done) {
+                for (Block block : free) {
+                    blockPool.offer(block);
+                }
+            }
+        }
+    }
+
+    private static void produce(File file, long offset, long count, int level, BlockingQueue<Block> free,
+            BlockingQueue<Block> ready) {
+        Deflater deflater = deflaters.poll();
+        if (deflater == null) {
+            deflater = new Deflater(level, true);
+        }
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long read = 0;
+            while (read < count) {
+                Block block = free.take();
+                block.rawLength = (int) Math.min(BLOCK_SIZE, count - read);
+                ByteBuffer buffer = ByteBuffer.wrap(block.raw, 0, block.rawLength);
+                while (buffer.hasRemaining()) {
+                    if (channel.read(buffer, offset + read + buffer.position()) == -1) {
+                        block.failure = new EOFException(file.getName() + " shrank while it was sent");
+                        ready.put(block);
+                        return;
+                    }
+                }
+                encode(block, deflater, level);
+                read += block.rawLength;
+                ready.put(block);
+            }
+        } catch (IOException e) {
+            Block block = new Block();
+            block.failure = e;
+            ready.offer(block);
+        } catch (InterruptedException e) {
+            // the transfer was given up
+        } finally {
+            deflater.reset();
+            if (!deflaters.offer(deflater)) {
+                deflater.end();
+            }
+        }
+    }
+
+    // the sample is the start of the block's deflate stream, so a block that passes doesn't compress it twice
+    private static void encode(Block block, Deflater deflater, int level) {
+        block.deflated = false;
+        if (level == Deflater.NO_COMPRESSION) {
+            return;
+        }
+        deflater.reset();
+        deflater.setLevel(level);
+        int sample = 0;
+        int sampled = 0;
+        if (block.rawLength > SAMPLE_SIZE) {
+            sample = SAMPLE_SIZE;
+            deflater.setInput(block.raw, 0, sample);
+            sampled = deflater.deflate(block.wire, 0, sample, Deflater.SYNC_FLUSH);
+            if (sampled > sample * WORTHWHILE) {
+                return;
+            }
+        }
+        deflater.setInput(block.raw, sample, block.rawLength - sample);
+        deflater.finish();
+        int limit = (int) (block.rawLength * WORTHWHILE);
+        int length = sampled + deflater.deflate(block.wire, sampled, limit - sampled);
+        if (deflater.finished()) {
+            block.deflated = true;
+            block.wireLength = length;
+        }
+    }
+
+    // the receiving side, one per range reply
+    static final class Reader {
+        private final DataInputStream dis;
+        private final byte[] wire = new byte[BLOCK_SIZE];
+        private int wireLength;
+
+        Reader(DataInputStream dis) {
+            this.dis = dis;
+        }
+
+        // reads the next block into out, which holds BLOCK_SIZE bytes; returns its raw length
+        int read(byte[] out, int remaining) throws IOException {
+            int type = dis.readUnsignedByte();
+            int rawLength = dis.readInt();
+            if (rawLength <= 0 || rawLength > BLOCK_SIZE || rawLength > remaining) {
+                throw new IOException("Bad block length " + rawLength);
+            }
+            if (type == STORED) {
+                dis.readFully(out, 0, rawLength);
+                wireLength = rawLength;
+            } else if (type == DEFLATED) {
+                wireLength = dis.readInt();
+                if (wireLength <= 0 || wireLength > BLOCK_SIZE) {
+                    throw new IOException("Bad deflated block length " + wireLength);
+                }
+                dis.readFully(wire, 0, wireLength);
+                inflate(wire, wireLength, out, rawLength);
+            } else {
+                throw new IOException("Unknown block type " + type);
+            }
+            rawReceived.addAndGet(rawLength);
+            wireReceived.addAndGet(wireLength);
+            return rawLength;
+        }
+
+        // bytes the last block took on the wire
+        int wireLength() {
+            return wireLength;
+        }
+    }
+
+    static void inflate(byte[] wire, int wireLength, byte[] out, int rawLength) throws IOException {
+        Inflater inflater = inflaters.poll();
+        if (inflater == null) {
+            inflater = new Inflater(true);
+        }
+        try {
+            inflater.setInput(wire, 0, wireLength);
+            int length = inflater.inflate(out, 0, rawLength);
+            if (length != rawLength || !inflater.finished()) {
+                throw new IOException("Deflated block doesn't match its length " + rawLength);
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt deflated block: " + e.getMessage());
+        } finally {
+            inflater.reset();
+            if (!inflaters.offer(inflater)) {
+                inflater.end();
+            }
+        }
+    }
+
+    static long getRawSent() {
+        return rawSent.get();
+    }
+
+    static long getWireSent() {
+        return wireSent.get();
+    }
+
+    static long getRawReceived() {
+        return rawReceived.get();
+    }
+
+    static long getWireReceived() {
+        return wireReceived.get();
+    }
+}
@@ -0,0 +1,231 @@
+package Peer;
+
+import Common.EventLog;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Runs downloads concurrently. At most maxDownloads transfers run at once, smallest file first,
+// and at most perPeer pieces are fetched from any one source at a time across all of them.
+class DownloadManager {
+    private static final int HISTORY_SIZE = 16;
+    private static final int ANNOUNCE_TO = 3;
+
+    enum State {
+        RESOLVING, QUEUED, DOWNLOADING, DONE, FAILED
+    }
+
+    interface Finisher {
+        void finished(Job job, SwarmDownload download, boolean success);
+    }
+
+    final class Job implements Runnable, Comparable<Job> {
+        final String fileName;
+        final String trackerAddress;
+        final long seq;
+        final CompletableFuture<Boolean> result = new CompletableFuture<>();
+        final AtomicLong received = new AtomicLong();
+        volatile State state = State.RESOLVING;
+        volatile long size = -1;
+        volatile String rootHash;
+        volatile List<InetSocketAddress> sources = Collections.emptyList();
+        private SwarmDownload download;
+
+        Job(String fileName, String trackerAddress, long seq) {
+            this.fileName = fileName;
+            this.trackerAddress = trackerAddress;
+            this.seq = seq;
+        }
+
+        @Override
+        public int compareTo(Job other) {
+            int bySize = Long.compare(size < 0 ? Long.MAX_VALUE : size, other.size < 0 ? Long.MAX_VALUE : other.size);
+            return bySize != 0 ? bySize : Long.compare(seq, other.seq);
+        }
+
+        @Override
+        public void run() {
+            state = State.DOWNLOADING;
+            boolean success = false;
+            try {
+                success = download.run();
+            } catch (IOException e) {
+                System.out.println("Download of " + fileName + " failed: " + e.getMessage());
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+            if (!success || download.hadFailedSources()) {
+                lookups.invalidate(trackerAddress, fileName);
+            }
+            finish(this, success);
+            if (success) {
+                resolvers.execute(() -> announce(this));
+            }
+        }
+    }
+
+    private final Map<String, Job> active = new ConcurrentHashMap<>();
+    private final Deque<Job> history = new ArrayDeque<>();
+    private final ExecutorService resolvers = Executors.newCachedThreadPool();
+    private final ThreadPoolExecutor workers;
+    private final SourcePicker picker;
+    private final LookupCache lookups = new LookupCache(Long.getLong("peer.lookup.ttl", 30000),
+            Long.getLong("peer.lookup.negativeTtl", 5000), Integer.getInteger("peer.lookup.size", 1024));
+    private final int trackerPort;
+    private final EventLog events;
+    private final Finisher finisher;
+    private final Throttle throttle;
+    private final TransferStats stats;
+    private final PeerExchange exchange;
+    private final SessionPool sessions;
+    private final AtomicLong nextSeq = new AtomicLong();
+
+    DownloadManager(int maxDownloads, int perPeer, int trackerPort, EventLog events, Throttle throttle,
+            TransferStats stats, PeerExchange exchange, SessionPool sessions, Finisher finisher) {
+        this.picker = new SourcePicker(perPeer);
+        this.exchange = exchange;
+        this.sessions = sessions;
+        this.throttle = throttle;
+        this.stats = stats;
+        this.trackerPort = trackerPort;
+        this.events = events;
+        this.finisher = finisher;
+        // the queue holds Jobs only, so it can order them by size
+        this.workers = new ThreadPoolExecutor(maxDownloads, maxDownloads, 0L, TimeUnit.MILLISECONDS,
+                new PriorityBlockingQueue<>());
+    }
+
+    // a second request for a file that is already queued or running joins the first one
+    CompletableFuture<Boolean> submit(String fileName, String trackerAddress) {
+        Job job = new Job(fileName, trackerAddress, nextSeq.incrementAndGet());
+        Job existing = active.putIfAbsent(fileName, job);
+        if (existing != null) {
+            System.out.println(fileName + " is already " + existing.state.toString().toLowerCase());
+            return existing.result;
+        }
+        resolvers.execute(() -> resolve(job));
+        return job.result;
+    }
+
+    // a job that blows up before it is queued still has to fail, or whoever waits on it waits forever
+    private void resolve(Job job) {
+        try {
+            start(job);
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+            finish(job, false);
+        }
+    }
+
+    private void start(Job job) {
+        TrackerClient.Lookup lookup;
+        try {
+            lookup = lookups.get(job.trackerAddress, job.fileName,
+                    () -> new TrackerClient(job.trackerAddress, trackerPort).get(job.fileName));
+            events.record(EventLog.Type.GET, job.trackerAddress, job.fileName,
+                    lookup == null ? "File not found" : lookup.sources.size() + " source(s)");
+        } catch (SocketTimeoutException e) {
+            System.out.println("Tracker did not respond in time.");
+            lookup = null;
+        } catch (IOException e) {
+            e.printStackTrace();
+            lookup = null;
+        }
+        List<InetSocketAddress> sources;
+        if (lookup != null) {
+            // the tracker lists the least loaded holders first, the picker takes it from there
+            sources = new ArrayList<>(lookup.sources);
+            exchange.learn(job.fileName, sources);
+        } else {
+            // without the tracker, fall back on the holders other peers told us about
+            sources = exchange.holders(job.fileName, null, PeerExchange.MAX_PEERS);
+            if (sources.isEmpty()) {
+                System.out.println("File not found on network: " + job.fileName);
+                finish(job, false);
+                return;
+            }
+            System.out.println("Trying " + sources.size() + " peer(s) we heard of for " + job.fileName);
+        }
+        job.sources = sources;
+        job.rootHash = lookup == null ? null : lookup.rootHash;
+        job.download = new SwarmDownload(job.fileName, sources, new File(job.fileName).toPath(), job.rootHash,
+                job.received::set, picker, throttle, stats, exchange, sessions);
+        job.size = job.download.probeSize();
+        job.state = State.QUEUED;
+        workers.execute(job);
+    }
+
+    // tells a few of the sources that we serve the file now, so they can pass us on
+    private void announce(Job job) {
+        List<InetSocketAddress> sources = job.sources;
+        for (int i = 0; i < sources.size() && i < ANNOUNCE_TO; i++) {
+            try {
+                exchange.exchange(sources.get(i), job.fileName);
+            } catch (IOException e) {
+                // it was only a courtesy
+            }
+        }
+    }
+
+    // download is null for a job that failed before it got one
+    private void finish(Job job, boolean success) {
+        try {
+            finisher.finished(job, job.download, success);
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+        }
+        job.state = success ? State.DONE : State.FAILED;
+        active.remove(job.fileName, job);
+        synchronized (history) {
+            history.addFirst(job);
+            if (history.size() > HISTORY_SIZE) {
+                history.removeLast();
+            }
+        }
+        job.result.complete(success);
+    }
+
+    // active jobs grouped by state, queued ones in the order they will start, then recent ones
+    List<Job> jobs() {
+        List<Job> running = new ArrayList<>(active.values());
+        running.sort(Comparator.comparing((Job job) -> job.state).thenComparing(Comparator.naturalOrder()));
+        synchronized (history) {
+            running.addAll(history);
+        }
+        return running;
+    }
+
+    void printStatus() {
+        List<Job> jobs = jobs();
+        if (jobs.isEmpty()) {
+            System.out.println("No downloads");
+            return;
+        }
+        for (Job job : jobs) {
+            StringBuilder line = new StringBuilder();
+            line.append(String.format("%-12s %s", job.state, job.fileName));
+            if (job.size > 0) {
+                long received = job.state == State.DONE ? job.size : job.received.get();
+                line.append(String.format("  %d%% of %d bytes", received * 100 / job.size, job.size));
+            }
+            if (!job.sources.isEmpty()) {
+                line.append("  ").append(job.sources.size()).append(" source(s)");
+            }
+            System.out.println(line);
+        }
+        System.out.println("Tracker lookups: " + lookups.getRequests() + " sent, " + lookups.getHits()
+                + " answered from cache, " + lookups.size() + " cached");
+        System.out.println("Peer connections: " + sessions.getOpened() + " opened for " + sessions.getRequests()
+                + " requests, " + sessions.idleCount() + " idle");
+        if (DeflateTransfer.getRawReceived() > 0 || DeflateTransfer.getRawSent() > 0) {
+            System.out.println("Compressed ranges: " + DeflateTransfer.getRawReceived() + " bytes received as "
+                    + DeflateTransfer.getWireReceived() + ", " + DeflateTransfer.getRawSent() + " bytes sent as "
+                    + DeflateTransfer.getWireSent());
+        }
+    }
+}
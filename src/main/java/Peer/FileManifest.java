@@ -0,0 +1,241 @@
+package Peer;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+class FileManifest {
+    private static final int MAGIC = 0x4d414e31;
+    private static final int PIECES_PER_TASK = 4;
+    private static final Path CACHE_DIR = Paths.get(".manifests");
+    private static final Map<String, FileManifest> cache = new ConcurrentHashMap<>();
+    private static final ThreadLocal<ByteBuffer> readBuffers = ThreadLocal
+            .withInitial(() -> ByteBuffer.allocateDirect(SwarmDownload.PIECE_SIZE));
+
+    private final long fileSize;
+    private final long lastModified;
+    private final int pieceSize;
+    private final byte[][] pieceHashes;
+    private final byte[] rootHash;
+
+    private FileManifest(long fileSize, long lastModified, int pieceSize, byte[][] pieceHashes) {
+        this.fileSize = fileSize;
+        this.lastModified = lastModified;
+        this.pieceSize = pieceSize;
+        this.pieceHashes = pieceHashes;
+        this.rootHash = root(pieceHashes);
+    }
+
+    static FileManifest forFile(File file) throws IOException {
+        String key = file.getCanonicalPath();
+        FileManifest cached = cache.get(key);
+        if (cached == null) {
+            cached = loadCached(key);
+        }
+        if (cached != null && cached.matches(file)) {
+            cache.put(key, cached);
+            return cached;
+        }
+        FileManifest manifest = compute(file);
+        cache.put(key, manifest);
+        store(key, manifest);
+        return manifest;
+    }
+
+    // registers a manifest received with a download so the file can be re-shared without hashing it again
+    static void remember(File file, FileManifest manifest) throws IOException {
+        FileManifest current = new FileManifest(file.length(), file.lastModified(), manifest.pieceSize,
+                manifest.pieceHashes);
+        String key = file.getCanonicalPath();
+        cache.put(key, current);
+        store(key, current);
+    }
+
+    static FileManifest compute(File file) throws IOException {
+        long fileSize = file.length();
+        long lastModified = file.lastModified();
+        int pieceSize = SwarmDownload.PIECE_SIZE;
+        int pieceCount = (int) ((fileSize + pieceSize - 1) / pieceSize);
+        byte[][] hashes = new byte[pieceCount][];
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            ForkJoinPool.commonPool().invoke(new HashTask(channel, fileSize, pieceSize, hashes, 0, pieceCount));
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        return new FileManifest(fileSize, lastModified, pieceSize, hashes);
+    }
+
+    private static final class HashTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final FileChannel channel;
+        private final long fileSize;
+        private final int pieceSize;
+        private final byte[][] hashes;
+        private final int from;
+        private final int to;
+
+        HashTask(FileChannel channel, long fileSize, int pieceSize, byte[][] hashes, int from, int to) {
+            this.channel = channel;
+            this.fileSize = fileSize;
+            this.pieceSize = pieceSize;
+            this.hashes = hashes;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > PIECES_PER_TASK) {
+                int mid = (from + to) >>> 1;
+                invokeAll(new HashTask(channel, fileSize, pieceSize, hashes, from, mid),
+                        new HashTask(channel, fileSize, pieceSize, hashes, mid, to));
+                return;
+            }
+            MessageDigest digest = sha256();
+            ByteBuffer buffer = readBuffers.get();
+            try {
+                for (int piece = from; piece < to; piece++) {
+                    long position = (long) piece * pieceSize;
+                    long end = Math.min(fileSize, position + pieceSize);
+                    while (position < end) {
+                        buffer.clear();
+                        buffer.limit((int) Math.min(buffer.capacity(), end - position));
+                        int bytesRead = channel.read(buffer, position);
+                        if (bytesRead == -1) {
+                            throw new EOFException("File changed while hashing");
+                        }
+                        buffer.flip();
+                        digest.update(buffer);
+                        position += bytesRead;
+                    }
+                    hashes[piece] = digest.digest();
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    boolean matches(File file) {
+        return file.length() == fileSize && file.lastModified() == lastModified;
+    }
+
+    boolean verifyPiece(int piece, byte[] digest) {
+        return piece >= 0 && piece < pieceHashes.length && MessageDigest.isEqual(pieceHashes[piece], digest);
+    }
+
+    long getFileSize() {
+        return fileSize;
+    }
+
+    int getPieceSize() {
+        return pieceSize;
+    }
+
+    String rootHex() {
+        return hex(rootHash);
+    }
+
+    static String hex(byte[] bytes) {
+        StringBuilder builder = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            builder.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return builder.toString();
+    }
+
+    void write(DataOutputStream out) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeLong(fileSize);
+        out.writeLong(lastModified);
+        out.writeInt(pieceSize);
+        out.writeInt(pieceHashes.length);
+        for (byte[] hash : pieceHashes) {
+            out.write(hash);
+        }
+    }
+
+    // manifests come from other peers, so nothing is allocated for them before the header checks out;
+    // expectedSize is the size the file is known to have, or -1 for any
+    static FileManifest read(DataInputStream in, long expectedSize) throws IOException {
+        if (in.readInt() != MAGIC) {
+            throw new IOException("Not a manifest");
+        }
+        long fileSize = in.readLong();
+        long lastModified = in.readLong();
+        int pieceSize = in.readInt();
+        int pieceCount = in.readInt();
+        if (pieceSize != SwarmDownload.PIECE_SIZE || fileSize < 0 || (expectedSize >= 0 && fileSize != expectedSize)
+                || pieceCount != (fileSize + pieceSize - 1) / pieceSize) {
+            throw new IOException("Corrupt manifest");
+        }
+        // grown as the hashes arrive, so a made-up size costs the sender as much as us
+        List<byte[]> hashes = new ArrayList<>(Math.min(pieceCount, 1024));
+        for (int i = 0; i < pieceCount; i++) {
+            byte[] hash = new byte[32];
+            in.readFully(hash);
+            hashes.add(hash);
+        }
+        return new FileManifest(fileSize, lastModified, pieceSize, hashes.toArray(new byte[0][]));
+    }
+
+    static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static byte[] root(byte[][] pieceHashes) {
+        MessageDigest digest = sha256();
+        for (byte[] hash : pieceHashes) {
+            digest.update(hash);
+        }
+        return digest.digest();
+    }
+
+    private static Path cachePath(String key) {
+        return CACHE_DIR.resolve(hex(sha256().digest(key.getBytes(StandardCharsets.UTF_8))) + ".manifest");
+    }
+
+    private static FileManifest loadCached(String key) {
+        Path path = cachePath(key);
+        if (!Files.exists(path)) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+            if (!in.readUTF().equals(key)) {
+                return null;
+            }
+            return read(in, -1);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private static void store(String key, FileManifest manifest) {
+        try {
+            Files.createDirectories(CACHE_DIR);
+            Path path = cachePath(key);
+            try (DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(Files.newOutputStream(path)))) {
+                out.writeUTF(key);
+                manifest.write(out);
+            }
+        } catch (IOException e) {
+            System.out.println("Couldn't cache manifest for " + key + ": " + e.getMessage());
+        }
+    }
+}
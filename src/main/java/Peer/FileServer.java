@@ -0,0 +1,114 @@
+package Peer;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.*;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Consumer;
+
+class FileServer implements Runnable {
+    private static final long IDLE_TIMEOUT_MS = 30000;
+    private static final long SELECT_TIMEOUT_MS = 1000;
+
+    private final int port;
+    private final Consumer<Socket> handler;
+    private final Executor workers;
+
+    FileServer(int port, Consumer<Socket> handler, Executor workers) {
+        this.port = port;
+        this.handler = handler;
+        this.workers = workers;
+    }
+
+    @Override
+    public void run() {
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open();
+                Selector selector = Selector.open()) {
+            serverChannel.configureBlocking(false);
+            serverChannel.bind(new InetSocketAddress(port), 1024);
+            serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+            System.out.println("Peer listening for file requests on port " + port);
+            long lastSweep = System.currentTimeMillis();
+            while (!Thread.currentThread().isInterrupted()) {
+                selector.select(SELECT_TIMEOUT_MS);
+                List<SocketChannel> ready = new ArrayList<>();
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept(serverChannel, selector);
+                    } else if (key.isReadable()) {
+                        key.cancel();
+                        ready.add((SocketChannel) key.channel());
+                    }
+                }
+                if (!ready.isEmpty()) {
+                    // cancelled keys must be flushed before their channels can go back to blocking mode
+                    selector.selectNow();
+                    for (SocketChannel channel : ready) {
+                        dispatch(channel);
+                    }
+                }
+                long now = System.currentTimeMillis();
+                if (now - lastSweep >= SELECT_TIMEOUT_MS) {
+                    closeIdle(selector, now);
+                    lastSweep = now;
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void accept(ServerSocketChannel serverChannel, Selector selector) throws IOException {
+        SocketChannel channel;
+        while ((channel = serverChannel.accept()) != null) {
+            register(channel, selector);
+        }
+    }
+
+    private void register(SocketChannel channel, Selector selector) {
+        try {
+            channel.configureBlocking(false);
+            channel.register(selector, SelectionKey.OP_READ, System.currentTimeMillis());
+        } catch (IOException e) {
+            close(channel);
+        }
+    }
+
+    private void dispatch(SocketChannel channel) {
+        try {
+            channel.configureBlocking(true);
+            workers.execute(() -> handler.accept(channel.socket()));
+        } catch (IOException | RejectedExecutionException e) {
+            close(channel);
+        }
+    }
+
+    private void closeIdle(Selector selector, long now) {
+        for (SelectionKey key : selector.keys()) {
+            Object registeredAt = key.attachment();
+            if (registeredAt instanceof Long && now - (Long) registeredAt > IDLE_TIMEOUT_MS) {
+                key.cancel();
+                close((SocketChannel) key.channel());
+            }
+        }
+    }
+
+    private static void close(SocketChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // already gone
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package Peer;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.function.LongConsumer;
+
+final class FileTransfer {
+    private static final long TRANSFER_CHUNK = 1 << 20;
+    private static final int BUFFER_SIZE = 256 * 1024;
+    private static final BlockingQueue<ByteBuffer> bufferPool = new ArrayBlockingQueue<>(16);
+
+    private FileTransfer() {
+    }
+
+    // a limited transfer moves one quantum at a time so the buckets can interleave it with others. Without
+    // zeroCopy the file goes through a buffer of ours, which is also the fallback for sockets without a channel.
+    static long send(File file, long offset, long count, Socket socket, LongConsumer progress, boolean zeroCopy,
+            Throttle.Limiter limiter) throws IOException {
+        long chunk = limiter.isLimited() ? Throttle.QUANTUM : TRANSFER_CHUNK;
+        socket.getOutputStream().flush();
+        try (FileChannel fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long sent = 0;
+            WritableByteChannel target = socket.getChannel();
+            // a failed transferTo may have written part of its chunk, so it can't be picked up from sent
+            if (target != null && zeroCopy) {
+                while (sent < count) {
+                    long wanted = Math.min(chunk, count - sent);
+                    limiter.acquire(wanted);
+                    long transferred = fileChannel.transferTo(offset + sent, wanted, target);
+                    if (transferred <= 0) {
+                        break;
+                    }
+                    sent += transferred;
+                    progress.accept(sent);
+                }
+                if (sent == count) {
+                    return sent;
+                }
+            }
+            if (target == null) {
+                target = Channels.newChannel(socket.getOutputStream());
+            }
+            return sent + copy(fileChannel, offset + sent, count - sent, target, sent, progress, chunk, limiter);
+        }
+    }
+
+    private static long copy(FileChannel source, long position, long count, WritableByteChannel target,
+            long alreadySent, LongConsumer progress, long chunk, Throttle.Limiter limiter) throws IOException {
+        ByteBuffer buffer = bufferPool.poll();
+        if (buffer == null) {
+            buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        }
+        try {
+            long sent = 0;
+            while (sent < count) {
+                buffer.clear();
+                buffer.limit((int) Math.min(Math.min(buffer.capacity(), chunk), count - sent));
+                limiter.acquire(buffer.remaining());
+                int bytesRead = source.read(buffer, position + sent);
+                if (bytesRead == -1) {
+                    break;
+                }
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    target.write(buffer);
+                }
+                sent += bytesRead;
+                progress.accept(alreadySent + sent);
+            }
+            return sent;
+        } finally {
+            bufferPool.offer(buffer);
+        }
+    }
+}
@@ -0,0 +1,169 @@
+package Peer;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+
+// Keeps this peer's lease with every tracker it shared files through, so trackers don't have to ping
+// it. Each tracker gets a keepalive three times per lease, jittered so peers started together don't
+// beat together. A keepalive carries the upload load and the files dropped since the last one, and
+// all our files again when the tracker has forgotten us.
+class Heartbeat {
+    private static final long DEFAULT_INTERVAL_MS = 10000;
+    private static final double JITTER = 0.2;
+    // a lease is renewed this many times before it runs out, so a lost keepalive or two is harmless
+    private static final int BEATS_PER_LEASE = 3;
+
+    private static final class Lease {
+        final String trackerAddress;
+        final TrackerClient client;
+        // file name to root hash, for everything this tracker knows we share
+        final Map<String, String> files = new LinkedHashMap<>();
+        final Map<String, String> adds = new LinkedHashMap<>();
+        final Set<String> removes = new LinkedHashSet<>();
+        long intervalMs = DEFAULT_INTERVAL_MS;
+        // set after announcing everything again; a tracker that still doesn't know us then probes us instead
+        boolean resent;
+        boolean stopped;
+
+        Lease(String trackerAddress, TrackerClient client) {
+            this.trackerAddress = trackerAddress;
+            this.client = client;
+        }
+    }
+
+    private final int trackerPort;
+    private final int serverPort;
+    private final int pingPort;
+    private final int uploadSlots;
+    private final TransferStats stats;
+    private final Predicate<String> stillShared;
+    private final Map<String, Lease> leases = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "keepalive");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // stillShared tells whether a file is still offered, so files deleted from disk are dropped
+    Heartbeat(int trackerPort, int serverPort, int pingPort, int uploadSlots, TransferStats stats,
+            Predicate<String> stillShared) {
+        this.trackerPort = trackerPort;
+        this.serverPort = serverPort;
+        this.pingPort = pingPort;
+        this.uploadSlots = uploadSlots;
+        this.stats = stats;
+        this.stillShared = stillShared;
+    }
+
+    // confirmed files were accepted by a share; the others, such as acked downloads whose ack may have been
+    // lost, are announced again with the next keepalive
+    void shared(String trackerAddress, Map<String, String> rootHashes, boolean confirmed) {
+        if (rootHashes.isEmpty()) {
+            return;
+        }
+        while (true) {
+            Lease lease = leases.get(trackerAddress);
+            if (lease == null) {
+                TrackerClient client;
+                try {
+                    client = new TrackerClient(trackerAddress, trackerPort);
+                } catch (UnknownHostException e) {
+                    return;
+                }
+                Lease created = new Lease(trackerAddress, client);
+                lease = leases.putIfAbsent(trackerAddress, created);
+                if (lease == null) {
+                    lease = created;
+                    timer.schedule(() -> beat(created), ThreadLocalRandom.current().nextLong(DEFAULT_INTERVAL_MS),
+                            TimeUnit.MILLISECONDS);
+                }
+            }
+            synchronized (lease) {
+                if (lease.stopped) {
+                    continue;
+                }
+                lease.files.putAll(rootHashes);
+                lease.removes.removeAll(rootHashes.keySet());
+                if (!confirmed) {
+                    lease.adds.putAll(rootHashes);
+                }
+                return;
+            }
+        }
+    }
+
+    // the file goes out with the next keepalive to every tracker that has it
+    void unshared(String fileName) {
+        for (Lease lease : leases.values()) {
+            synchronized (lease) {
+                if (lease.files.containsKey(fileName)) {
+                    lease.files.remove(fileName);
+                    lease.adds.remove(fileName);
+                    lease.removes.add(fileName);
+                }
+            }
+        }
+    }
+
+    private void beat(Lease lease) {
+        synchronized (lease) {
+            try {
+                lease.stopped = !renew(lease);
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+            if (lease.stopped) {
+                leases.remove(lease.trackerAddress, lease);
+                return;
+            }
+        }
+        long jitter = (long) (lease.intervalMs * JITTER);
+        long delay = lease.intervalMs - jitter + ThreadLocalRandom.current().nextLong(2 * jitter + 1);
+        timer.schedule(() -> beat(lease), delay, TimeUnit.MILLISECONDS);
+    }
+
+    // returns false once there's no point in beating for this tracker any more
+    private boolean renew(Lease lease) {
+        for (Iterator<String> files = lease.files.keySet().iterator(); files.hasNext();) {
+            String fileName = files.next();
+            if (!stillShared.test(fileName)) {
+                files.remove();
+                lease.adds.remove(fileName);
+                lease.removes.add(fileName);
+            }
+        }
+        try {
+            do {
+                TrackerClient.Renewal renewal = lease.client.keepalive(serverPort, pingPort, stats.getActiveUploads(),
+                        uploadSlots, stats.getUploadRate(), lease.adds, lease.removes);
+                if (renewal == null) {
+                    // a text-only tracker keeps pinging us
+                    return false;
+                }
+                if (!renewal.known && !lease.resent) {
+                    lease.adds.putAll(lease.files);
+                    lease.resent = true;
+                    continue;
+                }
+                if (renewal.leaseMs > 0) {
+                    lease.intervalMs = Math.max(1, renewal.leaseMs / BEATS_PER_LEASE);
+                    lease.resent = false;
+                }
+            } while (!lease.adds.isEmpty() || !lease.removes.isEmpty());
+        } catch (SocketTimeoutException e) {
+            // the tracker may be restarting; its lease on us runs out on its own if it doesn't come back
+        } catch (IOException e) {
+            System.out.println("Tracker " + lease.trackerAddress + " doesn't take keepalives: " + e.getMessage());
+            return false;
+        }
+        return !lease.files.isEmpty() || !lease.removes.isEmpty();
+    }
+}
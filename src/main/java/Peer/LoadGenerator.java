@@ -0,0 +1,511 @@
+package Peer;
+
+import Common.TrackerProtocol;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+// Simulates many peers against one tracker over loopback UDP, for capacity planning. Every virtual
+// peer gets its own 127.x.y.z address and socket, so the tracker sees it as a separate peer: it
+// shares its files, looks files up, acks downloads and answers health pings like a real one.
+// A single selector thread drives all of them, so each peer only costs one file descriptor.
+//
+// usage: LoadGenerator <tracker_host[:port]> [peers=1000] [rate=2000] [duration=60] [files=1000]
+//        [filesPerPeer=5] [mix=share:1,get:8,ack:1,keepalive:0] [churn=0.01] [downtime=30] [dead=0.05]
+//        [timeout=2000] [binary=false] [port=46000]
+// keepalives only exist in the binary protocol and are ignored without binary=true.
+// churn is the fraction of peers that restart every second; a restarted peer is gone for
+// downtime seconds and then announces all its files again. Dead peers share once and then never
+// answer again, so the tracker has to evict them.
+public class LoadGenerator {
+    private static final String PING = "Are you still alive?";
+    private static final String PONG = "yep , I am still alive.";
+    private static final long REPORT_INTERVAL_NS = 1_000_000_000L;
+    private static final long CHECK_INTERVAL_NS = 100_000_000L;
+    private static final int PICK_ATTEMPTS = 8;
+
+    private enum Kind {
+        SHARE, GET, ACK, KEEPALIVE
+    }
+
+    private static final class VirtualPeer {
+        final InetSocketAddress address;
+        final int[] files;
+        final boolean dead;
+        DatagramChannel channel;
+        boolean online = true;
+        int announced;
+        long sentAt;
+        long backAt;
+
+        VirtualPeer(InetSocketAddress address, int[] files, boolean dead) {
+            this.address = address;
+            this.files = files;
+            this.dead = dead;
+        }
+    }
+
+    // keeps every sample so percentiles are exact; sorting happens only when reporting
+    private static final class Latencies {
+        private long[] samples = new long[1024];
+        private int size;
+
+        void add(long nanos) {
+            if (size == samples.length) {
+                samples = Arrays.copyOf(samples, size * 2);
+            }
+            samples[size++] = nanos;
+        }
+
+        void addAll(Latencies other) {
+            for (int i = 0; i < other.size; i++) {
+                add(other.samples[i]);
+            }
+        }
+
+        int size() {
+            return size;
+        }
+
+        void clear() {
+            size = 0;
+        }
+
+        String percentiles() {
+            if (size == 0) {
+                return "p50=- p99=- p999=-";
+            }
+            long[] sorted = Arrays.copyOf(samples, size);
+            Arrays.sort(sorted);
+            return String.format("p50=%s p99=%s p999=%s", millis(sorted, 0.50), millis(sorted, 0.99),
+                    millis(sorted, 0.999));
+        }
+
+        private static String millis(long[] sorted, double percentile) {
+            int index = (int) Math.min(sorted.length - 1, Math.ceil(sorted.length * percentile) - 1);
+            return String.format("%.2fms", sorted[Math.max(0, index)] / 1e6);
+        }
+    }
+
+    private final InetSocketAddress tracker;
+    private final int peerCount;
+    private final double rate;
+    private final long durationNs;
+    private final int fileCount;
+    private final int filesPerPeer;
+    private final int[] mix = new int[Kind.values().length];
+    private final double churn;
+    private final long downtimeNs;
+    private final double deadRatio;
+    private final long timeoutNs;
+    private final boolean binary;
+    private final int port;
+    private final Random random = new Random();
+    private final List<VirtualPeer> peers = new ArrayList<>();
+    private final Deque<VirtualPeer> announcing = new ArrayDeque<>();
+    private final Deque<VirtualPeer> restarting = new ArrayDeque<>();
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(TrackerProtocol.MAX_DATAGRAM);
+    private final Latencies window = new Latencies();
+    private final Latencies total = new Latencies();
+    private Selector selector;
+    private long sent;
+    private long received;
+    private long lost;
+    private long late;
+    private long sendFailures;
+    private long pings;
+    private long ignoredPings;
+    private final long[] sentByKind = new long[Kind.values().length];
+    private int requestId;
+
+    LoadGenerator(InetSocketAddress tracker, Map<String, String> options) {
+        this.tracker = tracker;
+        this.peerCount = Integer.parseInt(options.getOrDefault("peers", "1000"));
+        this.rate = Double.parseDouble(options.getOrDefault("rate", "2000"));
+        this.durationNs = Long.parseLong(options.getOrDefault("duration", "60")) * 1_000_000_000L;
+        this.fileCount = Integer.parseInt(options.getOrDefault("files", "1000"));
+        this.filesPerPeer = Integer.parseInt(options.getOrDefault("filesPerPeer", "5"));
+        this.churn = Double.parseDouble(options.getOrDefault("churn", "0.01"));
+        this.downtimeNs = Long.parseLong(options.getOrDefault("downtime", "30")) * 1_000_000_000L;
+        this.deadRatio = Double.parseDouble(options.getOrDefault("dead", "0.05"));
+        this.timeoutNs = Long.parseLong(options.getOrDefault("timeout", "2000")) * 1_000_000L;
+        this.binary = Boolean.parseBoolean(options.getOrDefault("binary", "false"));
+        this.port = Integer.parseInt(options.getOrDefault("port", "46000"));
+        for (String weight : options.getOrDefault("mix", "share:1,get:8,ack:1").split(",")) {
+            String[] parts = weight.split(":");
+            mix[Kind.valueOf(parts[0].trim().toUpperCase()).ordinal()] = Integer.parseInt(parts[1].trim());
+        }
+        if (!binary) {
+            mix[Kind.KEEPALIVE.ordinal()] = 0;
+        }
+    }
+
+    public static void main(String[] args) {
+        if (args.length < 1) {
+            System.out.println("Usage: LoadGenerator <tracker_host[:port]> [peers=1000] [rate=2000] [duration=60]"
+                    + " [files=1000] [filesPerPeer=5] [mix=share:1,get:8,ack:1,keepalive:0] [churn=0.01] [downtime=30]"
+                    + " [dead=0.05] [timeout=2000] [binary=false] [port=46000]");
+            return;
+        }
+        Map<String, String> options = new HashMap<>();
+        for (int i = 1; i < args.length; i++) {
+            String[] option = args[i].split("=", 2);
+            if (option.length != 2) {
+                System.out.println("Ignoring option without a value: " + args[i]);
+                continue;
+            }
+            options.put(option[0], option[1]);
+        }
+        String[] trackerAddress = args[0].split(":");
+        InetSocketAddress tracker = new InetSocketAddress(trackerAddress[0],
+                trackerAddress.length > 1 ? Integer.parseInt(trackerAddress[1]) : 6881);
+        try {
+            new LoadGenerator(tracker, options).run();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    // 127.10.0.1 onwards, skipping .0 and .255 so every address is a plain host address
+    private InetAddress peerAddress(int index) throws IOException {
+        int host = index % 254 + 1;
+        int rest = index / 254;
+        return InetAddress.getByAddress(new byte[] { 127, (byte) (10 + rest / 256), (byte) (rest % 256),
+                (byte) host });
+    }
+
+    void run() throws IOException {
+        selector = Selector.open();
+        int deadCount = (int) Math.round(peerCount * deadRatio);
+        try {
+            for (int i = 0; i < peerCount; i++) {
+                int[] files = new int[filesPerPeer];
+                for (int f = 0; f < filesPerPeer; f++) {
+                    files[f] = random.nextInt(fileCount);
+                }
+                VirtualPeer peer = new VirtualPeer(new InetSocketAddress(peerAddress(i), port), files,
+                        i < deadCount);
+                peer.channel = DatagramChannel.open();
+                peer.channel.bind(peer.address);
+                peer.channel.configureBlocking(false);
+                peer.channel.register(selector, SelectionKey.OP_READ, peer);
+                peers.add(peer);
+                announcing.add(peer);
+            }
+        } catch (IOException e) {
+            System.out.println("Opened " + peers.size() + " of " + peerCount + " peers: " + e.getMessage());
+            System.out.println("Each peer needs a socket; raise the limit with `ulimit -n` for more peers.");
+            close();
+            return;
+        }
+        System.out.println("Simulating " + peerCount + " peers (" + deadCount + " dead) against " + tracker + " at "
+                + (long) rate + " requests/s for " + durationNs / 1_000_000_000L + " s, "
+                + (binary ? "binary" : "text") + " protocol");
+        try {
+            loop();
+        } finally {
+            close();
+        }
+    }
+
+    private void loop() throws IOException {
+        long start = System.nanoTime();
+        long end = start + durationNs;
+        long last = start;
+        long nextCheck = start + CHECK_INTERVAL_NS;
+        long nextReport = start + REPORT_INTERVAL_NS;
+        double allowance = 0;
+        double churnDebt = 0;
+        long now = start;
+        while (now < end) {
+            selector.select(1);
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                receive((VirtualPeer) key.attachment());
+            }
+            now = System.nanoTime();
+            // a short burst is fine, a backlog from a stall is not
+            allowance = Math.min(allowance + (now - last) * rate / 1e9, Math.max(1, rate / 10));
+            churnDebt += (now - last) * churn * peerCount / 1e9;
+            last = now;
+            while (allowance >= 1) {
+                allowance--;
+                VirtualPeer peer = pick();
+                if (peer != null) {
+                    send(peer, now);
+                }
+            }
+            if (now >= nextCheck) {
+                expire(now);
+                while (churnDebt >= 1) {
+                    churnDebt--;
+                    restart(peers.get(random.nextInt(peers.size())), now);
+                }
+                while (!restarting.isEmpty() && restarting.peek().backAt <= now) {
+                    VirtualPeer peer = restarting.poll();
+                    peer.online = true;
+                    peer.announced = 0;
+                    announcing.add(peer);
+                }
+                nextCheck = now + CHECK_INTERVAL_NS;
+            }
+            if (now >= nextReport) {
+                report((now - start) / 1_000_000_000L);
+                nextReport += REPORT_INTERVAL_NS;
+            }
+        }
+        long waitUntil = System.nanoTime() + timeoutNs;
+        while (hasOutstanding() && System.nanoTime() < waitUntil) {
+            selector.select(10);
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                receive((VirtualPeer) key.attachment());
+            }
+        }
+        expire(Long.MAX_VALUE);
+        summary((System.nanoTime() - start) / 1e9);
+    }
+
+    // peers that still have files to announce go first; they stay queued until they're done
+    private VirtualPeer pick() {
+        for (int attempt = 0; attempt < PICK_ATTEMPTS && !announcing.isEmpty(); attempt++) {
+            VirtualPeer peer = announcing.poll();
+            if (!peer.online || peer.announced >= peer.files.length) {
+                continue;
+            }
+            announcing.add(peer);
+            if (peer.sentAt == 0) {
+                return peer;
+            }
+        }
+        for (int attempt = 0; attempt < PICK_ATTEMPTS; attempt++) {
+            VirtualPeer peer = peers.get(random.nextInt(peers.size()));
+            if (peer.online && peer.sentAt == 0 && peer.announced >= peer.files.length) {
+                return peer;
+            }
+        }
+        return null;
+    }
+
+    private void send(VirtualPeer peer, long now) throws IOException {
+        Kind kind;
+        int file;
+        if (peer.announced < peer.files.length) {
+            kind = Kind.SHARE;
+            file = peer.files[peer.announced];
+        } else {
+            kind = chooseKind();
+            file = kind == Kind.SHARE ? peer.files[random.nextInt(peer.files.length)] : random.nextInt(fileCount);
+        }
+        buffer.clear();
+        if (binary) {
+            writeBinary(peer, kind, file);
+        } else {
+            writeText(kind, file);
+        }
+        buffer.flip();
+        if (peer.channel.send(buffer, tracker) == 0) {
+            sendFailures++;
+            return;
+        }
+        sent++;
+        sentByKind[kind.ordinal()]++;
+        if (kind == Kind.SHARE && peer.announced < peer.files.length) {
+            peer.announced = binary ? peer.files.length : peer.announced + 1;
+            if (peer.announced >= peer.files.length) {
+                if (peer.dead) {
+                    // shared its files, then crashed
+                    peer.online = false;
+                }
+            }
+        }
+        // text acks are answered on port 8080, so only binary ones can be timed
+        if (kind != Kind.ACK || binary) {
+            peer.sentAt = now;
+        }
+    }
+
+    private Kind chooseKind() {
+        int sum = 0;
+        for (int weight : mix) {
+            sum += weight;
+        }
+        int roll = random.nextInt(Math.max(1, sum));
+        for (Kind kind : Kind.values()) {
+            roll -= mix[kind.ordinal()];
+            if (roll < 0) {
+                return kind;
+            }
+        }
+        return Kind.GET;
+    }
+
+    private void writeText(Kind kind, int file) {
+        String message;
+        if (kind == Kind.SHARE) {
+            message = "share file-" + file + " " + tracker.getHostString() + " " + port + " " + port + " " + port;
+        } else if (kind == Kind.GET) {
+            message = "get file-" + file;
+        } else {
+            message = "ack file-" + file + " " + port + " success " + port + " " + port;
+        }
+        buffer.put(message.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private void writeBinary(VirtualPeer peer, Kind kind, int file) {
+        if (kind == Kind.SHARE) {
+            TrackerProtocol.putHeader(buffer, TrackerProtocol.OP_SHARE, ++requestId);
+            buffer.putShort((short) port);
+            buffer.putShort((short) port);
+            boolean announce = peer.announced < peer.files.length;
+            buffer.putShort((short) (announce ? peer.files.length : 1));
+            if (announce) {
+                for (int owned : peer.files) {
+                    TrackerProtocol.putString(buffer, "file-" + owned);
+                    TrackerProtocol.putHash(buffer, null);
+                }
+            } else {
+                TrackerProtocol.putString(buffer, "file-" + file);
+                TrackerProtocol.putHash(buffer, null);
+            }
+        } else if (kind == Kind.GET) {
+            TrackerProtocol.putHeader(buffer, TrackerProtocol.OP_GET, ++requestId);
+            TrackerProtocol.putString(buffer, "file-" + file);
+            TrackerProtocol.putString(buffer, "");
+        } else if (kind == Kind.KEEPALIVE) {
+            TrackerProtocol.putHeader(buffer, TrackerProtocol.OP_KEEPALIVE, ++requestId);
+            buffer.putShort((short) port);
+            buffer.putShort((short) port);
+            buffer.putShort((short) 0).putShort((short) 8).putLong(0);
+            buffer.putShort((short) 0);
+            buffer.putShort((short) 0);
+        } else {
+            TrackerProtocol.putHeader(buffer, TrackerProtocol.OP_ACK, ++requestId);
+            buffer.put((byte) 1);
+            buffer.putShort((short) port);
+            buffer.putShort((short) port);
+            TrackerProtocol.putString(buffer, "file-" + file);
+            TrackerProtocol.putHash(buffer, null);
+        }
+    }
+
+    private void receive(VirtualPeer peer) throws IOException {
+        while (true) {
+            buffer.clear();
+            SocketAddress sender = peer.channel.receive(buffer);
+            if (sender == null) {
+                return;
+            }
+            buffer.flip();
+            if (!TrackerProtocol.isBinary(buffer) && startsWith(buffer, PING)) {
+                if (!peer.online) {
+                    ignoredPings++;
+                    continue;
+                }
+                String nonce = StandardCharsets.UTF_8.decode(buffer).toString().substring(PING.length());
+                peer.channel.send(ByteBuffer.wrap((PONG + nonce).getBytes(StandardCharsets.UTF_8)), sender);
+                pings++;
+                continue;
+            }
+            if (peer.sentAt == 0) {
+                late++;
+                continue;
+            }
+            long latency = System.nanoTime() - peer.sentAt;
+            peer.sentAt = 0;
+            received++;
+            window.add(latency);
+        }
+    }
+
+    private static boolean startsWith(ByteBuffer data, String prefix) {
+        if (data.remaining() < prefix.length()) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length(); i++) {
+            if (data.get(data.position() + i) != prefix.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void expire(long now) {
+        for (VirtualPeer peer : peers) {
+            if (peer.sentAt != 0 && now - peer.sentAt > timeoutNs) {
+                peer.sentAt = 0;
+                lost++;
+            }
+        }
+    }
+
+    // downtime is the same for everyone, so the queue stays ordered by return time
+    private void restart(VirtualPeer peer, long now) {
+        if (peer.dead || !peer.online) {
+            return;
+        }
+        peer.online = false;
+        peer.backAt = now + downtimeNs;
+        restarting.add(peer);
+    }
+
+    private boolean hasOutstanding() {
+        for (VirtualPeer peer : peers) {
+            if (peer.sentAt != 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private int online() {
+        int online = 0;
+        for (VirtualPeer peer : peers) {
+            if (peer.online) {
+                online++;
+            }
+        }
+        return online;
+    }
+
+    private void report(long second) {
+        System.out.println(String.format("%4ds sent=%d recv=%d lost=%d %s pings=%d online=%d", second, sent,
+                received, lost, window.percentiles(), pings, online()));
+        total.addAll(window);
+        window.clear();
+    }
+
+    private void summary(double seconds) {
+        total.addAll(window);
+        window.clear();
+        System.out.println("---");
+        System.out.println(String.format("%d requests in %.1f s (%.0f/s): %d share, %d get, %d ack, %d keepalive",
+                sent, seconds, sent / seconds, sentByKind[Kind.SHARE.ordinal()], sentByKind[Kind.GET.ordinal()],
+                sentByKind[Kind.ACK.ordinal()], sentByKind[Kind.KEEPALIVE.ordinal()]));
+        long timed = received + lost;
+        System.out.println(String.format("%d replies (%.0f/s), %d lost (%.2f%%), %d late, %d send failures", received,
+                received / seconds, lost, timed == 0 ? 0 : lost * 100.0 / timed, late, sendFailures));
+        System.out.println("latency " + total.percentiles() + " over " + total.size() + " replies");
+        System.out.println(pings + " pings answered, " + ignoredPings + " ignored by offline peers, " + online()
+                + " of " + peerCount + " peers online at the end");
+    }
+
+    private void close() throws IOException {
+        for (VirtualPeer peer : peers) {
+            peer.channel.close();
+        }
+        selector.close();
+    }
+}
@@ -0,0 +1,124 @@
+package Peer;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Remembers what the tracker said about a file for a while, so fetching the same popular files over
+// and over doesn't ask it every time. "File not found" is kept too, for a shorter time. The least
+// recently used entries go first once it is full, and concurrent lookups of a name that isn't cached
+// wait for a single request to the tracker instead of each sending their own.
+class LookupCache {
+    interface Loader {
+        // null when no peer has the file
+        TrackerClient.Lookup load() throws IOException;
+    }
+
+    private static final class Entry {
+        final TrackerClient.Lookup lookup;
+        final long expiresAt;
+
+        Entry(TrackerClient.Lookup lookup, long expiresAt) {
+            this.lookup = lookup;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private final long ttlMs;
+    private final long negativeTtlMs;
+    private final Map<String, Entry> entries;
+    private final Map<String, CompletableFuture<TrackerClient.Lookup>> inFlight = new ConcurrentHashMap<>();
+    // lookups answered without a request of their own, and requests actually sent
+    private long hits;
+    private long requests;
+
+    LookupCache(long ttlMs, long negativeTtlMs, int maxEntries) {
+        this.ttlMs = ttlMs;
+        this.negativeTtlMs = negativeTtlMs;
+        this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    private static String key(String trackerAddress, String fileName) {
+        return trackerAddress + " " + fileName;
+    }
+
+    TrackerClient.Lookup get(String trackerAddress, String fileName, Loader loader) throws IOException {
+        String key = key(trackerAddress, fileName);
+        synchronized (this) {
+            Entry entry = entries.get(key);
+            if (entry != null && entry.expiresAt > System.currentTimeMillis()) {
+                hits++;
+                return entry.lookup;
+            }
+        }
+        CompletableFuture<TrackerClient.Lookup> mine = new CompletableFuture<>();
+        CompletableFuture<TrackerClient.Lookup> running = inFlight.putIfAbsent(key, mine);
+        if (running != null) {
+            synchronized (this) {
+                hits++;
+            }
+            return await(running);
+        }
+        try {
+            synchronized (this) {
+                // the request we missed may have finished just before we got here
+                Entry entry = entries.get(key);
+                if (entry != null && entry.expiresAt > System.currentTimeMillis()) {
+                    hits++;
+                    mine.complete(entry.lookup);
+                    return entry.lookup;
+                }
+                requests++;
+            }
+            TrackerClient.Lookup lookup = loader.load();
+            long ttl = lookup == null ? negativeTtlMs : ttlMs;
+            synchronized (this) {
+                entries.put(key, new Entry(lookup, System.currentTimeMillis() + ttl));
+            }
+            mine.complete(lookup);
+            return lookup;
+        } catch (IOException | RuntimeException e) {
+            // failures aren't cached, the next lookup asks again
+            mine.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(key, mine);
+        }
+    }
+
+    private static TrackerClient.Lookup await(CompletableFuture<TrackerClient.Lookup> running) throws IOException {
+        try {
+            return running.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    // a download found some of the cached sources dead, so the next lookup asks the tracker again
+    synchronized void invalidate(String trackerAddress, String fileName) {
+        entries.remove(key(trackerAddress, fileName));
+    }
+
+    synchronized long getHits() {
+        return hits;
+    }
+
+    synchronized long getRequests() {
+        return requests;
+    }
+
+    synchronized int size() {
+        return entries.size();
+    }
+}
@@ -1,8 +1,9 @@
 package Peer;
 
+import Common.EventLog;
+
 import java.io.*;
 import java.net.*;
-import java.text.SimpleDateFormat;
 import java.util.*;
 import java.util.concurrent.*;
 
@@ -11,16 +12,27 @@ public class Peer {
     private static final int TRACKER_PORT = 6881; // Tracker port
     private static int pingPort = 6883; // Ping listener port
     private final Map<String, File> sharedFiles = new ConcurrentHashMap<>();
-    private final ExecutorService uploadPool = Executors.newFixedThreadPool(5);
-    private final Object downloadLock = new Object();
-    private final Map<String, ProgressBar> uploadProgressBars = new ConcurrentHashMap<>();
-    private final Map<String, ProgressBar> downloadProgressBars = new ConcurrentHashMap<>();
-    private SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
-    private List<String> logs = new CopyOnWriteArrayList<>();
-
-    private void log(String message) {
-        String timestamp = dateFormat.format(new Date());
-        logs.add("[" + timestamp + "] " + message);
+    private static final int MAX_UPLOADS = 1024;
+    // how many uploads at once this peer is happy to serve, reported to the tracker for ranking
+    private static final int UPLOAD_SLOTS = Integer.getInteger("peer.upload.slots", 8);
+    private final ExecutorService uploadPool = new ThreadPoolExecutor(16, MAX_UPLOADS, 60L, TimeUnit.SECONDS,
+            new SynchronousQueue<>());
+    private static final int EVENT_LOG_CAPACITY = 1000;
+    private final EventLog events = EventLog.fromSystemProperty(EVENT_LOG_CAPACITY, "peer.eventlog.file");
+    private final Throttle throttle = new Throttle();
+    private final TransferStats stats = new TransferStats();
+    private final SessionPool sessions = new SessionPool(Boolean.getBoolean("peer.compress"));
+    // uploads go from the file to the socket with transferTo unless this is turned off
+    private volatile boolean zeroCopy = !"false".equals(System.getProperty("peer.zeroCopy"));
+    private final PeerExchange exchange = new PeerExchange(serverPort, sharedFiles::containsKey, sessions);
+    private final DownloadManager downloads = new DownloadManager(Integer.getInteger("peer.downloads.max", 4),
+            Integer.getInteger("peer.downloads.perPeer", 2), TRACKER_PORT, events, throttle, stats, exchange,
+            sessions, this::finishDownload);
+    private final Heartbeat heartbeat = new Heartbeat(TRACKER_PORT, serverPort, pingPort, UPLOAD_SLOTS, stats,
+            this::stillShared);
+
+    private void log(EventLog.Type type, String ip, String fileName, String detail) {
+        events.record(type, ip, fileName, detail);
     }
 
     public static void main(String[] args) {
@@ -44,32 +56,26 @@ public class Peer {
         } catch (UnknownHostException e) {
             e.printStackTrace();
         }
-        new Peer().runner();
+        Peer peer = new Peer();
+        peer.throttle.setRate(Throttle.Direction.UP, Throttle.Scope.GLOBAL,
+                Throttle.parseRate(System.getProperty("peer.limit.up", "off")));
+        peer.throttle.setRate(Throttle.Direction.DOWN, Throttle.Scope.GLOBAL,
+                Throttle.parseRate(System.getProperty("peer.limit.down", "off")));
+        peer.runner();
 
     }
 
     private void runner() {
+        // 0 keeps the sampling for JMX but stops drawing the status line
+        long interval = Long.getLong("peer.progress.interval", 500);
+        stats.start(interval > 0 ? interval : 1000, interval > 0);
+        stats.register(serverPort);
         startPingListener();
-        startServer(serverPort, null);
+        new Thread(new FileServer(serverPort, this::handleUploadRequest, uploadPool)).start();
         startCLI();
 
     }
 
-    private void startServer(int port, String fileName) {
-        new Thread(() -> {
-            try (ServerSocket serverSocket = new ServerSocket(port)) {
-                System.out.println("Peer listening for file requests on port " + port + " for " + fileName);
-                while (true) {
-                    Socket clientSocket = serverSocket.accept();
-
-                    uploadPool.execute(() -> handleUploadRequest(clientSocket, fileName));
-                }
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
-        }).start();
-    }
-
     private void startPingListener() {
         new Thread(() -> {
             try (DatagramSocket socket = new DatagramSocket(pingPort)) {
@@ -80,12 +86,17 @@ public class Peer {
                     socket.receive(packet);
 
                     String message = new String(packet.getData(), 0, packet.getLength()).trim();
-                    log(message);
-                    if ("Are you still alive?".equals(message)) {
+                    if (message.startsWith("Are you still alive?")) {
 
                         InetAddress senderIP = packet.getAddress();
                         int senderPort = packet.getPort();
-                        byte[] pongResponse = "yep , I am still alive.".getBytes();
+                        String nonce = message.substring("Are you still alive?".length());
+                        if (nonce.endsWith(" load")) {
+                            // lets the tracker rank us when it hands out sources
+                            nonce = nonce.substring(0, nonce.length() - " load".length()) + " "
+                                    + stats.getActiveUploads() + "/" + UPLOAD_SLOTS + " " + stats.getUploadRate();
+                        }
+                        byte[] pongResponse = ("yep , I am still alive." + nonce).getBytes();
                         DatagramPacket responsePacket = new DatagramPacket(pongResponse, pongResponse.length, senderIP,
                                 senderPort);
                         socket.send(responsePacket);
@@ -97,52 +108,172 @@ public class Peer {
         }).start();
     }
 
-    private void handleUploadRequest(Socket socket, String originalfileName) {
-        try (DataInputStream dis = new DataInputStream(socket.getInputStream());
-                DataOutputStream dos = new DataOutputStream(socket.getOutputStream())) {
+    void addSharedFile(String fileName, File file) {
+        sharedFiles.put(fileName, file);
+    }
+
+    void setZeroCopy(boolean zeroCopy) {
+        this.zeroCopy = zeroCopy;
+    }
+
+    // files deleted from disk stop being shared
+    private boolean stillShared(String fileName) {
+        File file = sharedFiles.get(fileName);
+        if (file != null && !file.exists()) {
+            sharedFiles.remove(fileName, file);
+            System.out.println("No longer sharing " + fileName + ", the file is gone");
+            return false;
+        }
+        return file != null;
+    }
+
+    void handleUploadRequest(Socket socket) {
+        try (DataInputStream dis = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()))) {
             String fileName = dis.readUTF();
-            if (!sharedFiles.containsKey(fileName)) {
-                dos.writeUTF("File not found");
+            if (fileName.equals(SessionPool.SESSION_REQUEST)
+                    || fileName.startsWith(SessionPool.SESSION_REQUEST + " ")) {
+                serveSession(socket, dis, dos, fileName);
                 return;
             }
-            if (!fileName.equals(originalfileName)) {
-                dos.writeUTF("This port is not for this file !");
+            if (SwarmDownload.RANGE_REQUEST.equals(fileName)) {
+                handleRangeRequest(socket, dis, dos, false);
                 return;
             }
-            File file = sharedFiles.get(fileName);
-            dos.writeLong(file.length());
-            dos.flush();
-            ProgressBar progressBar = new ProgressBar(file.length());
-            uploadProgressBars.put(fileName, progressBar);
-
-            try (FileInputStream fis = new FileInputStream(file)) {
-                byte[] buffer = new byte[4096];
-                int bytesRead;
-                long totalBytesSent = 0;
-                while ((bytesRead = fis.read(buffer)) != -1) {
-                    dos.write(buffer, 0, bytesRead);
-                    dos.flush();
-                    totalBytesSent += bytesRead;
-                    progressBar.updateProgress(totalBytesSent);
-                }
-            } catch (Exception e) {
-                System.out.println("Error in download Process!");
-                System.out.println(e.getMessage());
+            if (SwarmDownload.MANIFEST_REQUEST.equals(fileName)) {
+                handleManifestRequest(dis, dos);
+                return;
             }
-            uploadProgressBars.remove(fileName);
-            System.out.println("File " + fileName + " sent to " + socket.getInetAddress());
+            if (SwarmDownload.PEERS_REQUEST.equals(fileName)) {
+                exchange.handleRequest(socket, dis, dos);
+                return;
+            }
+            handleFileRequest(socket, fileName, dos, false);
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
 
+    // requests on one connection until the downloader closes it or goes quiet, answered in order
+    private void serveSession(Socket socket, DataInputStream dis, DataOutputStream dos, String hello)
+            throws IOException {
+        List<String> features = Arrays.asList(hello.split(" "));
+        dos.writeUTF(features.contains(SessionPool.DEFLATE) ? SessionPool.SESSION_REQUEST + " " + SessionPool.DEFLATE
+                : SessionPool.SESSION_REQUEST);
+        dos.flush();
+        socket.setSoTimeout(SessionPool.SERVER_IDLE_MS);
+        while (true) {
+            int op;
+            try {
+                op = dis.read();
+            } catch (SocketTimeoutException e) {
+                return;
+            }
+            switch (op) {
+                case -1:
+                    return;
+                case SessionPool.OP_FILE:
+                    handleFileRequest(socket, dis.readUTF(), dos, true);
+                    break;
+                case SessionPool.OP_RANGE:
+                    handleRangeRequest(socket, dis, dos, false);
+                    break;
+                case SessionPool.OP_RANGE_DEFLATE:
+                    handleRangeRequest(socket, dis, dos, true);
+                    break;
+                case SessionPool.OP_MANIFEST:
+                    handleManifestRequest(dis, dos);
+                    break;
+                case SessionPool.OP_PEERS:
+                    exchange.handleRequest(socket, dis, dos);
+                    break;
+                default:
+                    throw new IOException("Unknown session request " + op + " from " + socket.getInetAddress());
+            }
+        }
+    }
+
+    // in a session a missing file is a length of -1, and a failed send ends the session
+    private void handleFileRequest(Socket socket, String fileName, DataOutputStream dos, boolean inSession)
+            throws IOException {
+        File file = sharedFiles.get(fileName);
+        if (file == null) {
+            if (inSession) {
+                dos.writeLong(-1);
+            } else {
+                dos.writeUTF("File not found");
+            }
+            dos.flush();
+            return;
+        }
+        long length = file.length();
+        dos.writeLong(length);
+        dos.flush();
+        try (TransferStats.Transfer transfer = stats.begin(Throttle.Direction.UP, fileName,
+                socket.getInetAddress(), length);
+                Throttle.Limiter limiter = throttle.open(Throttle.Direction.UP, fileName)) {
+            if (FileTransfer.send(file, 0, length, socket, transfer::progress, zeroCopy, limiter) < length) {
+                throw new EOFException(fileName + " shrank while it was sent");
+            }
+        } catch (Exception e) {
+            System.out.println("Error in download Process!");
+            System.out.println(e.getMessage());
+            if (inSession) {
+                throw e;
+            }
+        }
+        System.out.println("File " + fileName + " sent to " + socket.getInetAddress());
+    }
+
+    private void handleRangeRequest(Socket socket, DataInputStream dis, DataOutputStream dos, boolean deflate)
+            throws IOException {
+        String fileName = dis.readUTF();
+        long offset = dis.readLong();
+        long length = dis.readLong();
+        File file = sharedFiles.get(fileName);
+        if (file == null || offset < 0 || length < 0) {
+            dos.writeLong(-1);
+            dos.flush();
+            return;
+        }
+        long fileLength = file.length();
+        long count = Math.max(0, Math.min(length, fileLength - offset));
+        dos.writeLong(fileLength);
+        dos.writeLong(count);
+        dos.flush();
+        try (TransferStats.Transfer transfer = stats.begin(Throttle.Direction.UP, fileName, socket.getInetAddress(),
+                count); Throttle.Limiter limiter = throttle.open(Throttle.Direction.UP, fileName)) {
+            // the reply promised count bytes, so a session can't go on after fewer
+            long sent = deflate ? DeflateTransfer.send(file, offset, count, dos, transfer::progress, limiter)
+                    : FileTransfer.send(file, offset, count, socket, transfer::progress, zeroCopy, limiter);
+            if (sent < count) {
+                throw new EOFException(fileName + " shrank while it was sent");
+            }
+        }
+    }
+
+    private void handleManifestRequest(DataInputStream dis, DataOutputStream dos) throws IOException {
+        File file = sharedFiles.get(dis.readUTF());
+        if (file == null) {
+            dos.writeBoolean(false);
+        } else {
+            dos.writeBoolean(true);
+            FileManifest.forFile(file).write(dos);
+        }
+        dos.flush();
+    }
+
     private void startCLI() {
         Scanner scanner = new Scanner(System.in);
         ExecutorService executor = Executors.newCachedThreadPool();
         try {
             System.out.println("Peer CLI started. Use commands such as:");
-            System.out.println("  share <file_path> <tracker_address> <listen_port>");
-            System.out.println("  get <file_name> <tracker_address> <listen_port>");
+            System.out.println("  share <file_path>[,<file_path>...] <tracker_address> <listen_port>");
+            System.out.println("  get <file_name> <tracker_address>");
+            System.out.println("  unshare <file_name>");
+            System.out.println("  downloads");
+            System.out.println("  transfers");
+            System.out.println("  limit [<up|down> <global|file|conn> <rate|off>]");
             while (true) {
                 System.out.print("> ");
                 String command = scanner.nextLine();
@@ -157,15 +288,32 @@ public class Peer {
                         executor.execute(() -> shareFile(parts[1], parts[2], parts[3]));
                         break;
                     case "get":
+                        if (parts.length < 3) {
+                            System.out.println("Usage: get <file_name> <tracker_address>");
+                            continue;
+                        }
+                        getFile(parts[1], parts[2]);
+                        break;
+                    case "unshare":
                         if (parts.length < 2) {
-                            System.out.println("Usage: get <file_name> <tracker_address> <port>");
+                            System.out.println("Usage: unshare <file_name>");
                             continue;
                         }
-                        executor.execute(() -> getFile(parts[1], parts[2], parts[3]));
+                        unshareFile(parts[1], executor);
+                        break;
+                    case "downloads":
+                        downloads.printStatus();
+                        break;
+                    case "transfers":
+                        stats.printStatus();
+                        break;
+                    case "limit":
+                        limit(parts);
                         break;
                     case "logs":
-                        for (String x : logs)
+                        for (EventLog.Event x : events.all())
                             System.out.println(x);
+                        break;
                     default:
                         System.out.println("Unknown command");
                 }
@@ -176,12 +324,8 @@ public class Peer {
         }
     }
 
-    private void shareFile(String filePath, String trackerAddress, String listenPortStr) {
-        File file = new File(filePath);
-        if (!file.exists()) {
-            System.out.println("File does not exist: " + filePath);
-            return;
-        }
+    // filePaths may name several files separated by commas; they are announced together
+    private void shareFile(String filePaths, String trackerAddress, String listenPortStr) {
         int listenPort;
         try {
             listenPort = Integer.parseInt(listenPortStr);
@@ -190,171 +334,120 @@ public class Peer {
             return;
         }
 
-        try (DatagramSocket socket = new DatagramSocket(listenPort)) {
-            String message = "share " + file.getName() + " " + trackerAddress + " " + listenPort + " " + serverPort
-                    + " " + pingPort;
-            byte[] buffer = message.getBytes();
-
-            DatagramPacket packet = new DatagramPacket(buffer, buffer.length, InetAddress.getByName(trackerAddress),
-                    TRACKER_PORT);
-            socket.send(packet);
-            System.out.println("Sent share request for file: " + file.getName());
-
-            byte[] responseBuffer = new byte[1024];
-            DatagramPacket responsePacket = new DatagramPacket(responseBuffer, responseBuffer.length);
-            socket.setSoTimeout(5000);
-
-            try {
-                socket.receive(responsePacket);
-                String response = new String(responsePacket.getData(), 0, responsePacket.getLength()).trim();
-                System.out.println("Tracker response: " + response);
-
-                if (response.startsWith("File shared successfully")) {
-                    startServer(listenPort, file.getName());
-                    sharedFiles.put(file.getName(), file);
-                    System.out.println("File " + file.getName() + " successfully registered with tracker.");
+        Map<String, File> files = new LinkedHashMap<>();
+        Map<String, String> rootHashes = new LinkedHashMap<>();
+        try {
+            for (String filePath : filePaths.split(",")) {
+                File file = new File(filePath.trim());
+                if (!file.exists()) {
+                    System.out.println("File does not exist: " + filePath);
+                    continue;
+                }
+                files.put(file.getName(), file);
+                rootHashes.put(file.getName(), FileManifest.forFile(file).rootHex());
+            }
+            if (files.isEmpty()) {
+                return;
+            }
+            TrackerClient tracker = new TrackerClient(trackerAddress, TRACKER_PORT);
+            Map<String, Boolean> results = tracker.share(rootHashes, listenPort, serverPort, pingPort);
+            System.out.println("Sent share request for " + files.size() + " file(s)");
+            Map<String, String> accepted = new LinkedHashMap<>();
+            for (Map.Entry<String, File> file : files.entrySet()) {
+                Boolean shared = results.get(file.getKey());
+                if (shared == null) {
+                    System.out.println("Tracker did not answer for file: " + file.getKey());
+                } else if (shared) {
+                    sharedFiles.put(file.getKey(), file.getValue());
+                    accepted.put(file.getKey(), rootHashes.get(file.getKey()));
+                    System.out.println("File " + file.getKey() + " successfully registered with tracker.");
                 } else {
-                    System.out.println("Error from tracker: " + response);
+                    System.out.println("Error from tracker: already shared with different content: " + file.getKey());
                 }
-            } catch (SocketTimeoutException e) {
-                System.out.println("Tracker did not respond in time.");
             }
-
+            heartbeat.shared(trackerAddress, accepted, true);
+        } catch (SocketTimeoutException e) {
+            System.out.println("Tracker did not respond in time.");
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
 
-    private void getFile(String fileName, String trackerAddress, String port) {
-        synchronized (downloadLock) {
-            Random rand = new Random();
-            try (DatagramSocket socket = new DatagramSocket()) {
-                String message = "get " + fileName;
-                byte[] buffer = message.getBytes();
-
-                DatagramPacket packet = new DatagramPacket(buffer, buffer.length, InetAddress.getByName(trackerAddress),
-                        TRACKER_PORT);
-                socket.send(packet);
-
-                byte[] responseBuffer = new byte[1024];
-                DatagramPacket responsePacket = new DatagramPacket(responseBuffer, responseBuffer.length);
-                socket.receive(responsePacket);
-                String response = new String(responsePacket.getData(), 0, responsePacket.getLength());
-                log(response);
-                if (response.equals("File not found")) {
-                    System.out.println("File not found on network");
-                    return;
-                }
-                String[] rawInfo = response.split(",");
-                int randomIndex = rand.nextInt(rawInfo.length);
-                String[] peerInfo = rawInfo[randomIndex].split(":");
-                String peerIP = peerInfo[0];
-                int peerPort = Integer.parseInt(peerInfo[1]);
+    // trackers hear about it with the next keepalive
+    private void unshareFile(String fileName, ExecutorService executor) {
+        if (sharedFiles.remove(fileName) == null) {
+            System.out.println("Not sharing " + fileName);
+            return;
+        }
+        executor.execute(() -> heartbeat.unshared(fileName));
+        System.out.println("Stopped sharing " + fileName);
+    }
 
-                downloadFile(fileName, peerIP, peerPort, trackerAddress);
-            } catch (IOException e) {
-                e.printStackTrace();
+    private void limit(String[] parts) {
+        if (parts.length == 1) {
+            for (Throttle.Direction direction : Throttle.Direction.values()) {
+                System.out.println(direction.toString().toLowerCase() + ": global "
+                        + Throttle.formatRate(throttle.getRate(direction, Throttle.Scope.GLOBAL)) + ", per file "
+                        + Throttle.formatRate(throttle.getRate(direction, Throttle.Scope.FILE)) + ", per connection "
+                        + Throttle.formatRate(throttle.getRate(direction, Throttle.Scope.CONNECTION)) + ", "
+                        + throttle.activeTransfers(direction) + " active");
             }
+            return;
+        }
+        if (parts.length < 4) {
+            System.out.println("Usage: limit <up|down> <global|file|conn> <rate|off>");
+            return;
+        }
+        try {
+            Throttle.Direction direction = Throttle.Direction.valueOf(parts[1].toUpperCase());
+            Throttle.Scope scope = parts[2].equalsIgnoreCase("conn") ? Throttle.Scope.CONNECTION
+                    : Throttle.Scope.valueOf(parts[2].toUpperCase());
+            long rate = Throttle.parseRate(parts[3]);
+            throttle.setRate(direction, scope, rate);
+            System.out.println(parts[1] + " " + parts[2] + " limit set to " + Throttle.formatRate(rate));
+        } catch (IllegalArgumentException e) {
+            System.out.println("Usage: limit <up|down> <global|file|conn> <rate|off>");
         }
     }
 
-    private void downloadFile(String fileName, String peerIP, int peerPort, String trackerAddress) {
-        boolean success = false;
-        int newpPort = -1;
-        try (Socket socket = new Socket(peerIP, peerPort);
-                DataInputStream dis = new DataInputStream(socket.getInputStream());
-                DataOutputStream dos = new DataOutputStream(socket.getOutputStream());
-                FileOutputStream fos = new FileOutputStream(fileName)) {
-            dos.writeUTF(fileName);
-            dos.flush();
-            long fileSize = dis.readLong();
-            if (fileSize <= 0) {
-                System.out.println("Invalid file size received.");
-                return;
-            }
-            ProgressBar progressBar = new ProgressBar(fileSize);
-            downloadProgressBars.put(fileName, progressBar);
-            byte[] buffer = new byte[4096];
-            int bytesRead;
-            long totalBytesReceived = 0;
-            while (totalBytesReceived < fileSize
-                    && (bytesRead = dis.read(buffer, 0, (int) Math.min(buffer.length, fileSize))) != -1) {
-                fos.write(buffer, 0, bytesRead);
-                fos.flush();
-                totalBytesReceived += bytesRead;
-                progressBar.updateProgress(totalBytesReceived);
-                fileSize -= bytesRead;
-            }
-            downloadProgressBars.remove(fileName);
-            System.out.println("\nDownloaded: " + fileName);
-            sharedFiles.put(fileName, new File(fileName));
-            success = true;
-            if (success) {
-                System.out.println(
-                        "you have downloaded a file , now you have to share it with others...\n select a port number:\n");
-                boolean inloop = true;
-                Random random = new Random();
-                while (inloop) {
-                    try {
-                        newpPort = random.nextInt(64512) + 1024;
-                        startServer(newpPort, fileName);
-                        inloop = false;
-                    } catch (Exception e) {
-                        System.out.println("Port in use or error occurred, trying a new port...\n");
+    private void getFile(String fileName, String trackerAddress) {
+        downloads.submit(fileName, trackerAddress);
+    }
 
-                    }
+    private void finishDownload(DownloadManager.Job job, SwarmDownload download, boolean success) {
+        String rootHash = job.rootHash;
+        String fileName = job.fileName;
+        if (success) {
+            System.out.println("Downloaded: " + fileName + " from " + job.sources.size() + " peers");
+            File file = new File(fileName);
+            if (download != null && download.getManifest() != null) {
+                try {
+                    FileManifest.remember(file, download.getManifest());
+                } catch (IOException e) {
+                    e.printStackTrace();
                 }
+                rootHash = download.getManifest().rootHex();
             }
-        } catch (IOException e) {
-            e.printStackTrace();
+            sharedFiles.put(fileName, file);
+            System.out.println("Now sharing " + fileName + " on port " + serverPort);
+            log(EventLog.Type.DOWNLOAD, null, fileName, "downloaded from " + job.sources.size() + " peers");
+        } else {
+            System.out.println("Couldn't download " + fileName + " from any peer");
+            log(EventLog.Type.DOWNLOAD, null, fileName, "download failed");
+        }
+        sendDownloadAckToTracker(fileName, success, job.trackerAddress, serverPort, rootHash);
+        if (success) {
+            heartbeat.shared(job.trackerAddress, Collections.singletonMap(fileName, rootHash), false);
         }
-        sendDownloadAckToTracker(fileName, success, trackerAddress, newpPort);
     }
 
-    private void sendDownloadAckToTracker(String fileName, boolean success, String trackerAddress, int newPort) {
-        try (DatagramSocket socket = new DatagramSocket()) {
-            String message = "ack " + fileName + " " + newPort + " " + (success ? "success" : "failure") + " "
-                    + pingPort + " " + serverPort;
-            byte[] buffer = message.getBytes();
-
-            DatagramPacket packet = new DatagramPacket(buffer, buffer.length, InetAddress.getByName(trackerAddress),
-                    TRACKER_PORT);
-            socket.send(packet);
-
+    private void sendDownloadAckToTracker(String fileName, boolean success, String trackerAddress, int newPort,
+            String rootHash) {
+        try {
+            new TrackerClient(trackerAddress, TRACKER_PORT).ack(fileName, success, newPort, serverPort, pingPort,
+                    rootHash);
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
-
-    private class ProgressBar {
-        private final long totalSize;
-        private long currentProgress;
-
-        public ProgressBar(long totalSize) {
-            this.totalSize = totalSize;
-            this.currentProgress = 0;
-        }
-
-        public void updateProgress(long progress) {
-            this.currentProgress = progress;
-            printProgressBar();
-        }
-
-        private void printProgressBar() {
-            int progressPercentage = (int) ((currentProgress * 100) / totalSize);
-            int barLength = 50;
-            int progressLength = (int) ((progressPercentage * barLength) / 100);
-            StringBuilder progressBar = new StringBuilder();
-            progressBar.append("[");
-            for (int i = 0; i < barLength; i++) {
-                if (i < progressLength) {
-                    progressBar.append("=");
-                } else {
-                    progressBar.append(" ");
-                }
-            }
-            progressBar.append("] ").append(progressPercentage).append("%");
-            System.out.print("\r" + progressBar.toString());
-        }
-    }
 }
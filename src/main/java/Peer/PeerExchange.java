@@ -0,0 +1,188 @@
+package Peer;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.*;
+import java.util.function.Predicate;
+
+// Who else holds each file, learned from tracker lookups and from the peers we download from or
+// upload to. Two peers swap short lists of holders of a file, at most once per pair and file every
+// MIN_INTERVAL_MS, so a swarm keeps finding sources while the tracker is slow or down.
+class PeerExchange {
+    // holders per message in either direction
+    static final int MAX_PEERS = 50;
+    private static final int MAX_KNOWN = 200;
+    private static final int MAX_FILES = 1024;
+    private static final int MAX_RECENT = 4096;
+    private static final long MIN_INTERVAL_MS = 30000;
+
+    private final int serverPort;
+    private final Predicate<String> shares;
+    private final SessionPool sessions;
+    // per file, oldest first
+    private final Map<String, LinkedHashSet<InetSocketAddress>> known =
+            new LinkedHashMap<String, LinkedHashSet<InetSocketAddress>>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, LinkedHashSet<InetSocketAddress>> eldest) {
+                    return size() > MAX_FILES;
+                }
+            };
+    // last exchange with a host about a file
+    private final Map<String, Long> recent = new LinkedHashMap<String, Long>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+            return size() > MAX_RECENT;
+        }
+    };
+
+    // shares tells whether we serve a file ourselves, in which case we hand out our own server port
+    PeerExchange(int serverPort, Predicate<String> shares, SessionPool sessions) {
+        this.serverPort = serverPort;
+        this.shares = shares;
+        this.sessions = sessions;
+    }
+
+    synchronized void learn(String fileName, Collection<InetSocketAddress> holders) {
+        LinkedHashSet<InetSocketAddress> peers = known.computeIfAbsent(fileName, k -> new LinkedHashSet<>());
+        for (InetSocketAddress holder : holders) {
+            if (isSelf(holder)) {
+                continue;
+            }
+            peers.remove(holder);
+            peers.add(holder);
+        }
+        for (Iterator<InetSocketAddress> oldest = peers.iterator(); peers.size() > MAX_KNOWN;) {
+            oldest.next();
+            oldest.remove();
+        }
+    }
+
+    // other peers hand our own address back to us once we serve a file
+    private boolean isSelf(InetSocketAddress holder) {
+        if (holder.getPort() != serverPort) {
+            return false;
+        }
+        InetAddress address = holder.getAddress();
+        try {
+            return address.isLoopbackAddress() || address.isAnyLocalAddress()
+                    || NetworkInterface.getByInetAddress(address) != null;
+        } catch (SocketException e) {
+            return false;
+        }
+    }
+
+    synchronized void forget(String fileName, InetSocketAddress holder) {
+        Set<InetSocketAddress> peers = known.get(fileName);
+        if (peers != null) {
+            peers.remove(holder);
+        }
+    }
+
+    synchronized boolean knows(String fileName, InetSocketAddress holder) {
+        Set<InetSocketAddress> peers = known.get(fileName);
+        return peers != null && peers.contains(holder);
+    }
+
+    // newest first, leaving out the given address
+    synchronized List<InetSocketAddress> holders(String fileName, InetSocketAddress except, int max) {
+        Set<InetSocketAddress> peers = known.get(fileName);
+        if (peers == null) {
+            return new ArrayList<>();
+        }
+        List<InetSocketAddress> newest = new ArrayList<>(peers);
+        Collections.reverse(newest);
+        newest.remove(except);
+        return new ArrayList<>(newest.subList(0, Math.min(max, newest.size())));
+    }
+
+    // takes the slot for an exchange with host about fileName, unless there was one too recently
+    private synchronized boolean allow(InetAddress host, String fileName) {
+        String key = host.getHostAddress() + " " + fileName;
+        long now = System.currentTimeMillis();
+        Long last = recent.get(key);
+        if (last != null && now - last < MIN_INTERVAL_MS) {
+            return false;
+        }
+        recent.put(key, now);
+        return true;
+    }
+
+    // asks a holder for the other holders it knows, telling it ours; returns null when it's too soon to ask
+    List<InetSocketAddress> exchange(InetSocketAddress holder, String fileName) throws IOException {
+        boolean seeding = shares.test(fileName);
+        if (!allow(holder.getAddress(), fileName) && !seeding) {
+            return null;
+        }
+        List<InetSocketAddress> offered = holders(fileName, holder, MAX_PEERS);
+        List<InetSocketAddress> peers = sessions.call(holder, session -> {
+            session.begin(SessionPool.OP_PEERS);
+            session.out.writeUTF(fileName);
+            session.out.writeShort(seeding ? serverPort : 0);
+            writePeers(session.out, offered);
+            session.out.flush();
+            return readPeers(session.in);
+        });
+        learn(fileName, peers);
+        return peers;
+    }
+
+    // the other side of exchange, for handleUploadRequest. A peer that just started serving the file is
+    // always heard, everything else only once per interval.
+    void handleRequest(Socket socket, DataInputStream dis, DataOutputStream dos) throws IOException {
+        String fileName = dis.readUTF();
+        int port = dis.readUnsignedShort();
+        List<InetSocketAddress> offered = readPeers(dis);
+        InetSocketAddress requester = port == 0 ? null : new InetSocketAddress(socket.getInetAddress(), port);
+        boolean announcing = requester != null && !knows(fileName, requester);
+        if (!allow(socket.getInetAddress(), fileName) && !announcing) {
+            writePeers(dos, Collections.emptyList());
+            dos.flush();
+            return;
+        }
+        writePeers(dos, holders(fileName, requester, MAX_PEERS));
+        dos.flush();
+        learn(fileName, offered);
+        if (requester != null) {
+            learn(fileName, Collections.singletonList(requester));
+        }
+    }
+
+    private static void writePeers(DataOutputStream dos, List<InetSocketAddress> peers) throws IOException {
+        int count = Math.min(peers.size(), MAX_PEERS);
+        dos.writeShort(count);
+        for (int i = 0; i < count; i++) {
+            InetSocketAddress peer = peers.get(i);
+            byte[] ip = peer.getAddress().getAddress();
+            dos.writeByte(ip.length);
+            dos.write(ip);
+            dos.writeShort(peer.getPort());
+        }
+    }
+
+    private static List<InetSocketAddress> readPeers(DataInputStream dis) throws IOException {
+        int count = dis.readUnsignedShort();
+        if (count > MAX_PEERS) {
+            throw new IOException("Too many peers in exchange: " + count);
+        }
+        List<InetSocketAddress> peers = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            int length = dis.readUnsignedByte();
+            if (length != 4 && length != 16) {
+                throw new IOException("Bad address length in exchange: " + length);
+            }
+            byte[] ip = new byte[length];
+            dis.readFully(ip);
+            int port = dis.readUnsignedShort();
+            if (port != 0) {
+                peers.add(new InetSocketAddress(InetAddress.getByAddress(ip), port));
+            }
+        }
+        return peers;
+    }
+}
@@ -0,0 +1,98 @@
+package Peer;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.BitSet;
+
+class PieceMap {
+    // the second version names the content the pieces belong to; maps from the first are dropped
+    private static final int MAGIC = 0x50434d32;
+
+    private final Path sidecar;
+    private final String rootHash;
+    private final long fileSize;
+    private final int pieceSize;
+    private final int pieceCount;
+    private final BitSet done;
+
+    private PieceMap(Path sidecar, String rootHash, long fileSize, int pieceSize, BitSet done) {
+        this.sidecar = sidecar;
+        this.rootHash = rootHash;
+        this.fileSize = fileSize;
+        this.pieceSize = pieceSize;
+        this.pieceCount = (int) ((fileSize + pieceSize - 1) / pieceSize);
+        this.done = done;
+    }
+
+    // rootHash is the hex root of the manifest the download follows, or empty without one; pieces recorded
+    // for other content, say a file that changed on the swarm since, don't count
+    static PieceMap load(Path sidecar, String rootHash, long fileSize, int pieceSize) {
+        if (Files.exists(sidecar)) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(sidecar)))) {
+                if (in.readInt() == MAGIC && in.readUTF().equals(rootHash) && in.readLong() == fileSize
+                        && in.readInt() == pieceSize) {
+                    byte[] bits = new byte[in.readInt()];
+                    in.readFully(bits);
+                    return new PieceMap(sidecar, rootHash, fileSize, pieceSize, BitSet.valueOf(bits));
+                }
+                System.out.println("Discarding piece map " + sidecar + " for different content");
+            } catch (IOException e) {
+                System.out.println("Ignoring unreadable piece map " + sidecar + ": " + e.getMessage());
+            }
+        }
+        return new PieceMap(sidecar, rootHash, fileSize, pieceSize, new BitSet());
+    }
+
+    synchronized void save() throws IOException {
+        Path temp = sidecar.resolveSibling(sidecar.getFileName() + ".tmp");
+        byte[] bits = done.toByteArray();
+        try (FileOutputStream fos = new FileOutputStream(temp.toFile());
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos))) {
+            out.writeInt(MAGIC);
+            out.writeUTF(rootHash);
+            out.writeLong(fileSize);
+            out.writeInt(pieceSize);
+            out.writeInt(bits.length);
+            out.write(bits);
+            out.flush();
+            fos.getFD().sync();
+        }
+        Files.move(temp, sidecar, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    void delete() throws IOException {
+        Files.deleteIfExists(sidecar);
+    }
+
+    synchronized boolean isDone(int piece) {
+        return done.get(piece);
+    }
+
+    synchronized void markDone(int piece) {
+        done.set(piece);
+    }
+
+    synchronized int completedCount() {
+        return done.cardinality();
+    }
+
+    synchronized boolean isComplete() {
+        return done.cardinality() == pieceCount;
+    }
+
+    synchronized long completedBytes() {
+        long bytes = 0;
+        for (int piece = done.nextSetBit(0); piece >= 0 && piece < pieceCount; piece = done.nextSetBit(piece + 1)) {
+            bytes += pieceLength(piece);
+        }
+        return bytes;
+    }
+
+    int pieceCount() {
+        return pieceCount;
+    }
+
+    int pieceLength(int piece) {
+        return (int) Math.min(pieceSize, fileSize - (long) piece * pieceSize);
+    }
+}
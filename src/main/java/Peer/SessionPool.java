@@ -0,0 +1,345 @@
+package Peer;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Keeps connections to other peers' server ports open between requests, so fetching many small files
+// or pieces from one peer doesn't pay for a TCP handshake and slow start every time. A connection
+// turns into a session with SESSION_REQUEST; after that every request is an op byte and its arguments,
+// and the serving peer answers them in the order they came, so the next request can be written before
+// the last reply is read. Peers that don't know sessions get one connection per request, as before.
+//
+// The session request can name features after a space, and the serving peer answers with the ones it
+// has. The only one so far is DEFLATE, which lets ranges be asked for compressed.
+class SessionPool {
+    static final String SESSION_REQUEST = "\u0000session";
+    static final String DEFLATE = "deflate";
+    static final int OP_FILE = 1;
+    static final int OP_RANGE = 2;
+    static final int OP_MANIFEST = 3;
+    static final int OP_PEERS = 4;
+    // a range sent as DeflateTransfer blocks
+    static final int OP_RANGE_DEFLATE = 5;
+    // the serving side closes a session that sends nothing for this long; idle connections are
+    // dropped here well before that, so we don't reuse one the other side is about to close
+    static final int SERVER_IDLE_MS = 60000;
+    private static final long IDLE_MS = Math.min(Long.getLong("peer.session.idle", 20000), SERVER_IDLE_MS / 2);
+    private static final int MAX_IDLE_PER_PEER = 4;
+    // connections to one peer at once; past that a caller waits a while for one to come back
+    private static final int MAX_PER_PEER = Integer.getInteger("peer.session.perPeer", 8);
+    private static final long WAIT_MS = 2000;
+    private static final int MAX_REMEMBERED = 1024;
+    private static final int CONNECT_TIMEOUT_MS = 5000;
+    private static final int READ_TIMEOUT_MS = 15000;
+    private static final long SWEEP_MS = 5000;
+
+    // never keeps a connection, for callers without a pool
+    static final SessionPool ONE_SHOT = new SessionPool(false, false);
+
+    interface Call<T> {
+        T call(Session session) throws IOException;
+    }
+
+    static final class Session implements Closeable {
+        final InetSocketAddress address;
+        // false for a peer that takes one request per connection
+        final boolean persistent;
+        // whether the peer takes OP_RANGE_DEFLATE, settled by the handshake
+        boolean deflate;
+        final DataInputStream in;
+        final DataOutputStream out;
+        private final Socket socket;
+        private final SessionPool pool;
+        private int requests;
+        private long idleSince;
+        private boolean closed;
+
+        private Session(InetSocketAddress address, Socket socket, boolean persistent, SessionPool pool)
+                throws IOException {
+            this.address = address;
+            this.socket = socket;
+            this.persistent = persistent;
+            this.pool = pool;
+            this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        }
+
+        // an older peer takes the session request for a file name it doesn't have and hangs up; one
+        // that knows sessions but not the features asked for does the same
+        private boolean handshake(boolean askDeflate) throws IOException {
+            out.writeUTF(askDeflate ? SESSION_REQUEST + " " + DEFLATE : SESSION_REQUEST);
+            out.flush();
+            String reply;
+            try {
+                reply = in.readUTF();
+            } catch (EOFException e) {
+                return false;
+            }
+            deflate = askDeflate && reply.equals(SESSION_REQUEST + " " + DEFLATE);
+            return reply.equals(SESSION_REQUEST) || deflate;
+        }
+
+        // starts a request; the caller writes its arguments and flushes
+        void begin(int op) throws IOException {
+            if (persistent) {
+                out.writeByte(op);
+            } else if (requests > 0) {
+                throw new IllegalStateException("One request per connection to " + address);
+            } else {
+                out.writeUTF(marker(op));
+            }
+            requests++;
+            pool.requests.incrementAndGet();
+        }
+
+        private static String marker(int op) {
+            switch (op) {
+                case OP_RANGE:
+                    return SwarmDownload.RANGE_REQUEST;
+                case OP_MANIFEST:
+                    return SwarmDownload.MANIFEST_REQUEST;
+                case OP_PEERS:
+                    return SwarmDownload.PEERS_REQUEST;
+                default:
+                    throw new IllegalArgumentException("No one-shot form of request " + op);
+            }
+        }
+
+        // requests sent over the connection so far, including before it was last borrowed
+        int requests() {
+            return requests;
+        }
+
+        @Override
+        public void close() {
+            pool.closed(this);
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // already gone
+            }
+        }
+    }
+
+    private final boolean keep;
+    private final boolean compress;
+    // most recently used first
+    private final Map<InetSocketAddress, Deque<Session>> idle = new HashMap<>();
+    // open or being opened, idle or not
+    private final Map<InetSocketAddress, Integer> live = new HashMap<>();
+    // peers that turned down a session, and ones that turned down the features we asked for
+    private final Set<InetSocketAddress> oneShot = remembered();
+    private final Set<InetSocketAddress> plain = remembered();
+    private final AtomicLong opened = new AtomicLong();
+    private final AtomicLong requests = new AtomicLong();
+
+    // compress asks peers for deflated ranges
+    SessionPool(boolean compress) {
+        this(true, compress);
+    }
+
+    private SessionPool(boolean keep, boolean compress) {
+        this.keep = keep;
+        this.compress = compress;
+        if (keep) {
+            ScheduledExecutorService sweeper = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "session-sweeper");
+                thread.setDaemon(true);
+                return thread;
+            });
+            sweeper.scheduleWithFixedDelay(this::sweep, SWEEP_MS, SWEEP_MS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private static Set<InetSocketAddress> remembered() {
+        return Collections.newSetFromMap(new LinkedHashMap<InetSocketAddress, Boolean>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<InetSocketAddress, Boolean> eldest) {
+                return size() > MAX_REMEMBERED;
+            }
+        });
+    }
+
+    // an idle session to the address, or a new connection
+    Session borrow(InetSocketAddress address) throws IOException {
+        boolean persistent;
+        List<Session> stale = new ArrayList<>();
+        try {
+            synchronized (this) {
+                long deadline = System.currentTimeMillis() + WAIT_MS;
+                while (true) {
+                    long now = System.currentTimeMillis();
+                    Deque<Session> sessions = idle.get(address);
+                    while (sessions != null && !sessions.isEmpty()) {
+                        Session session = sessions.pollFirst();
+                        if (sessions.isEmpty()) {
+                            idle.remove(address);
+                        }
+                        if (now - session.idleSince < IDLE_MS) {
+                            return session;
+                        }
+                        stale.add(session);
+                    }
+                    // a burst of requests shares the connections it already has rather than opening one each;
+                    // past the wait we open one anyway, so a stuck caller can't hold up the others
+                    if (!keep || live.getOrDefault(address, 0) - stale.size() < MAX_PER_PEER || now >= deadline) {
+                        break;
+                    }
+                    try {
+                        wait(deadline - now);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("Interrupted waiting for a connection to " + address);
+                    }
+                }
+                persistent = reserve(address);
+            }
+        } finally {
+            stale.forEach(Session::close);
+        }
+        return connect(address, persistent);
+    }
+
+    // counts a connection about to be opened; tells whether it should be a session
+    private synchronized boolean reserve(InetSocketAddress address) {
+        live.merge(address, 1, Integer::sum);
+        return keep && !oneShot.contains(address);
+    }
+
+    private Session connect(InetSocketAddress address, boolean persistent) throws IOException {
+        try {
+            return open(address, persistent);
+        } catch (IOException | RuntimeException e) {
+            gone(address);
+            throw e;
+        }
+    }
+
+    private Session open(InetSocketAddress address, boolean persistent) throws IOException {
+        Socket socket = new Socket();
+        try {
+            socket.connect(address, CONNECT_TIMEOUT_MS);
+            socket.setSoTimeout(READ_TIMEOUT_MS);
+            socket.setTcpNoDelay(true);
+            Session session = new Session(address, socket, persistent, this);
+            boolean askDeflate;
+            synchronized (this) {
+                askDeflate = compress && !plain.contains(address);
+            }
+            if (persistent && !session.handshake(askDeflate)) {
+                socket.close();
+                synchronized (this) {
+                    (askDeflate ? plain : oneShot).add(address);
+                }
+                // a plain session next, then a connection per request
+                return open(address, askDeflate);
+            }
+            opened.incrementAndGet();
+            return session;
+        } catch (IOException | RuntimeException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    private synchronized void closed(Session session) {
+        if (!session.closed) {
+            session.closed = true;
+            gone(session.address);
+        }
+    }
+
+    private synchronized void gone(InetSocketAddress address) {
+        live.computeIfPresent(address, (k, count) -> count > 1 ? count - 1 : null);
+        notifyAll();
+    }
+
+    // hands back a session whose replies have all been read
+    void release(Session session) {
+        if (!keep || !session.persistent) {
+            session.close();
+            return;
+        }
+        Session evicted = null;
+        synchronized (this) {
+            session.idleSince = System.currentTimeMillis();
+            Deque<Session> sessions = idle.computeIfAbsent(session.address, k -> new ArrayDeque<>());
+            sessions.addFirst(session);
+            if (sessions.size() > MAX_IDLE_PER_PEER) {
+                evicted = sessions.pollLast();
+            }
+            notifyAll();
+        }
+        if (evicted != null) {
+            evicted.close();
+        }
+    }
+
+    // one request and its reply. A kept connection may have been closed by the other side while it sat
+    // idle, so a failure on one is tried again once on a new connection.
+    <T> T call(InetSocketAddress address, Call<T> call) throws IOException {
+        Session session = borrow(address);
+        boolean reused = session.requests > 0;
+        try {
+            T result = call.call(session);
+            release(session);
+            return result;
+        } catch (IOException e) {
+            session.close();
+            if (!reused) {
+                throw e;
+            }
+        } catch (RuntimeException e) {
+            session.close();
+            throw e;
+        }
+        session = connect(address, reserve(address));
+        try {
+            T result = call.call(session);
+            release(session);
+            return result;
+        } catch (IOException | RuntimeException e) {
+            session.close();
+            throw e;
+        }
+    }
+
+    private void sweep() {
+        long now = System.currentTimeMillis();
+        List<Session> expired = new ArrayList<>();
+        synchronized (this) {
+            for (Iterator<Deque<Session>> peers = idle.values().iterator(); peers.hasNext();) {
+                Deque<Session> sessions = peers.next();
+                while (!sessions.isEmpty() && now - sessions.peekLast().idleSince >= IDLE_MS) {
+                    expired.add(sessions.pollLast());
+                }
+                if (sessions.isEmpty()) {
+                    peers.remove();
+                }
+            }
+        }
+        expired.forEach(Session::close);
+    }
+
+    long getOpened() {
+        return opened.get();
+    }
+
+    long getRequests() {
+        return requests.get();
+    }
+
+    synchronized int idleCount() {
+        int count = 0;
+        for (Deque<Session> sessions : idle.values()) {
+            count += sessions.size();
+        }
+        return count;
+    }
+}
@@ -0,0 +1,176 @@
+package Peer;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Picks the sources for a download. The tracker lists the least loaded peers first; on top of that
+// we keep a moving average of the round trip time and throughput we measured from every source, and
+// choose between two random candidates from the top of the list by the cheaper expected piece time.
+// It also caps how many pieces are fetched from one source at once across all downloads.
+class SourcePicker {
+    private static final double ALPHA = 0.3;
+    private static final int CANDIDATES_PER_SOURCE = 4;
+    // throughput samples from tiny transfers are mostly round trip time
+    private static final long MIN_SAMPLE_BYTES = 64 * 1024;
+    // a measurement this old says little about the source now, and sources come and go
+    private static final long ESTIMATE_TTL_NS = TimeUnit.MINUTES.toNanos(30);
+    // a cap nobody has held for this long is dropped; the next download starts a fresh one
+    private static final long SLOT_IDLE_NS = TimeUnit.MINUTES.toNanos(1);
+    private static final long PRUNE_EVERY_NS = TimeUnit.MINUTES.toNanos(1);
+
+    private static final class Estimate {
+        double rttNanos;
+        double throughput;
+        int failures;
+        volatile long updated = System.nanoTime();
+
+        synchronized void record(long rtt, long bytes, long nanos) {
+            updated = System.nanoTime();
+            rttNanos = rttNanos == 0 ? rtt : ALPHA * rtt + (1 - ALPHA) * rttNanos;
+            if (bytes >= MIN_SAMPLE_BYTES && nanos > 0) {
+                double sample = bytes * 1e9 / nanos;
+                throughput = throughput == 0 ? sample : ALPHA * sample + (1 - ALPHA) * throughput;
+            }
+            failures /= 2;
+        }
+
+        synchronized void failed() {
+            updated = System.nanoTime();
+            failures++;
+        }
+
+        synchronized double cost(int bytes) {
+            if (throughput == 0) {
+                // a source that only ever failed goes last
+                return failures > 0 ? Double.POSITIVE_INFINITY : Double.NaN;
+            }
+            return (rttNanos + bytes * 1e9 / throughput) * (1 + failures);
+        }
+    }
+
+    // the per-source cap and the workers that share it; changed only inside the map's compute methods
+    private static final class Slot {
+        final Semaphore permits;
+        int holders;
+        long released = System.nanoTime();
+
+        Slot(int perPeer) {
+            permits = new Semaphore(perPeer);
+        }
+    }
+
+    private final int perPeer;
+    private final Map<InetSocketAddress, Estimate> estimates = new ConcurrentHashMap<>();
+    private final Map<InetSocketAddress, Slot> slots = new ConcurrentHashMap<>();
+    private final AtomicLong nextPrune = new AtomicLong(System.nanoTime() + PRUNE_EVERY_NS);
+
+    SourcePicker(int perPeer) {
+        this.perPeer = perPeer;
+    }
+
+    // every caller hands it back with releaseSlot once it stops fetching from the source
+    Semaphore slot(InetSocketAddress source) {
+        return slots.compute(source, (k, slot) -> {
+            if (slot == null) {
+                slot = new Slot(perPeer);
+            }
+            slot.holders++;
+            return slot;
+        }).permits;
+    }
+
+    void releaseSlot(InetSocketAddress source) {
+        slots.computeIfPresent(source, (k, slot) -> {
+            slot.holders--;
+            slot.released = System.nanoTime();
+            return slot;
+        });
+    }
+
+    // rtt covers connecting and the request's reply header; nanos the transfer after it
+    void record(InetSocketAddress source, long rtt, long bytes, long nanos) {
+        estimates.computeIfAbsent(source, k -> new Estimate()).record(rtt, bytes, nanos);
+    }
+
+    void failed(InetSocketAddress source) {
+        estimates.computeIfAbsent(source, k -> new Estimate()).failed();
+    }
+
+    // expected nanoseconds for a piece, stretched by the pieces we are already pulling from the source;
+    // NaN when we haven't measured it yet
+    double cost(InetSocketAddress source, int pieceSize) {
+        Estimate estimate = estimates.get(source);
+        if (estimate == null || System.nanoTime() - estimate.updated > ESTIMATE_TTL_NS) {
+            return Double.NaN;
+        }
+        Slot slot = slots.get(source);
+        int busy = slot == null ? 0 : perPeer - slot.permits.availablePermits();
+        return estimate.cost(pieceSize) * (1 + busy);
+    }
+
+    // ranked is in the tracker's order; unmeasured sources are assumed to be as good as the average
+    // measured one, and two unmeasured ones keep the tracker's order
+    List<InetSocketAddress> choose(List<InetSocketAddress> ranked, int count, int pieceSize) {
+        prune();
+        List<InetSocketAddress> pool = new ArrayList<>(
+                ranked.subList(0, Math.min(ranked.size(), count * CANDIDATES_PER_SOURCE)));
+        List<InetSocketAddress> chosen = new ArrayList<>(count);
+        double known = 0;
+        int measured = 0;
+        for (InetSocketAddress source : pool) {
+            double cost = cost(source, pieceSize);
+            if (!Double.isNaN(cost) && !Double.isInfinite(cost)) {
+                known += cost;
+                measured++;
+            }
+        }
+        double prior = measured == 0 ? Double.NaN : known / measured;
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        while (chosen.size() < count && !pool.isEmpty()) {
+            if (pool.size() == 1) {
+                chosen.add(pool.remove(0));
+                break;
+            }
+            int a = random.nextInt(pool.size());
+            int b = random.nextInt(pool.size() - 1);
+            if (b >= a) {
+                b++;
+            }
+            double costA = orPrior(cost(pool.get(a), pieceSize), prior);
+            double costB = orPrior(cost(pool.get(b), pieceSize), prior);
+            int pick;
+            if (Double.isNaN(costA) || Double.isNaN(costB) || costA == costB) {
+                pick = Math.min(a, b);
+            } else {
+                pick = costA < costB ? a : b;
+            }
+            chosen.add(pool.remove(pick));
+        }
+        return chosen;
+    }
+
+    // at most once a minute, from whichever download picks sources next
+    private void prune() {
+        long now = System.nanoTime();
+        long due = nextPrune.get();
+        if (now - due < 0 || !nextPrune.compareAndSet(due, now + PRUNE_EVERY_NS)) {
+            return;
+        }
+        estimates.values().removeIf(estimate -> now - estimate.updated > ESTIMATE_TTL_NS);
+        for (InetSocketAddress source : slots.keySet()) {
+            slots.computeIfPresent(source,
+                    (k, slot) -> slot.holders == 0 && now - slot.released > SLOT_IDLE_NS ? null : slot);
+        }
+    }
+
+    private static double orPrior(double cost, double prior) {
+        return Double.isNaN(cost) ? prior : cost;
+    }
+}
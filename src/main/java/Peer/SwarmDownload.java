@@ -0,0 +1,676 @@
+package Peer;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.LongConsumer;
+
+class SwarmDownload {
+    static final String RANGE_REQUEST = "\u0000range";
+    static final String MANIFEST_REQUEST = "\u0000manifest";
+    static final String PEERS_REQUEST = "\u0000peers";
+    static final int PIECE_SIZE = 1 << 20;
+    private static final int MAX_SOURCES = 8;
+    private static final int MAX_FAILURES = 3;
+    private static final int MAX_DUPLICATES = 2;
+    private static final int SLOW_FACTOR = 4;
+    private static final int SAVE_EVERY_PIECES = 16;
+    private static final long SAVE_INTERVAL_MS = 2000;
+    // pieces requested from one source before the first of them has arrived
+    private static final int PIPELINE_DEPTH = 2;
+
+    private final String fileName;
+    private final List<Source> sources = new ArrayList<>();
+    private final Path output;
+    private final LongConsumer progress;
+    private final String expectedRoot;
+    private final SourcePicker picker;
+    private final Throttle throttle;
+    private final TransferStats stats;
+    private final PeerExchange exchange;
+    private final SessionPool sessions;
+    // every address a worker was started for, so a source that failed isn't tried again
+    private final Set<InetSocketAddress> tried = new HashSet<>();
+    private ExecutorService workers;
+    private int running;
+    private boolean growing;
+    private boolean finished;
+    private TransferStats.Transfer transfer;
+    private FileManifest manifest;
+    // the manifest that came with the size, when the source took both requests on one connection
+    private FileManifest probedManifest;
+    private long fileSize;
+    private int pieceCount;
+    private PieceMap pieces;
+    private int unsavedPieces;
+    private long lastSave;
+    private final Deque<Integer> pending = new ArrayDeque<>();
+    private final Map<Integer, Integer> inFlight = new HashMap<>();
+    private long completedBytes;
+    private FileChannel channel;
+    private volatile boolean failedSources;
+
+    private static final class Source {
+        final InetSocketAddress address;
+        int failures;
+        long bytes;
+        long nanos;
+
+        Source(InetSocketAddress address) {
+            this.address = address;
+        }
+
+        double throughput() {
+            return nanos == 0 ? 0 : bytes * 1e9 / nanos;
+        }
+    }
+
+    private static final class Request {
+        final int piece;
+        boolean written;
+
+        Request(int piece) {
+            this.piece = piece;
+        }
+    }
+
+    SwarmDownload(String fileName, List<InetSocketAddress> addresses, Path output, String expectedRoot,
+            LongConsumer progress) {
+        this(fileName, addresses, output, expectedRoot, progress, null, null, null, null, SessionPool.ONE_SHOT);
+    }
+
+    // picker, when given, chooses the sources and caps how many pieces are fetched from one at once;
+    // exchange, when given, finds more sources from the ones we have while the download runs
+    SwarmDownload(String fileName, List<InetSocketAddress> addresses, Path output, String expectedRoot,
+            LongConsumer progress, SourcePicker picker, Throttle throttle, TransferStats stats,
+            PeerExchange exchange, SessionPool sessions) {
+        this.fileName = fileName;
+        this.sessions = sessions;
+        this.picker = picker;
+        this.throttle = throttle;
+        this.stats = stats;
+        this.exchange = exchange;
+        this.expectedRoot = expectedRoot;
+        List<InetSocketAddress> chosen = picker == null
+                ? addresses.subList(0, Math.min(addresses.size(), MAX_SOURCES))
+                : picker.choose(addresses, MAX_SOURCES, PIECE_SIZE);
+        for (InetSocketAddress address : chosen) {
+            sources.add(new Source(address));
+            tried.add(address);
+        }
+        this.output = output;
+        this.progress = progress;
+    }
+
+    // whether any source couldn't be reached or failed a piece
+    boolean hadFailedSources() {
+        return failedSources;
+    }
+
+    FileManifest getManifest() {
+        return manifest;
+    }
+
+    private boolean matches(FileManifest candidate) {
+        return candidate != null && candidate.getFileSize() == fileSize && candidate.getPieceSize() == PIECE_SIZE
+                && (expectedRoot == null || expectedRoot.equals(candidate.rootHex()));
+    }
+
+    private FileManifest fetchManifest() {
+        if (probedManifest != null) {
+            return probedManifest;
+        }
+        for (Source source : sources) {
+            try {
+                FileManifest candidate = sessions.call(source.address,
+                        session -> requestManifest(session, fileName, fileSize));
+                if (matches(candidate)) {
+                    return candidate;
+                }
+            } catch (IOException e) {
+                source.failures++;
+                failedSources = true;
+            }
+        }
+        return null;
+    }
+
+    long probeSize() {
+        for (Source source : sources) {
+            try {
+                long size = sessions.call(source.address, this::probe);
+                if (size > 0) {
+                    fileSize = size;
+                    return size;
+                }
+            } catch (IOException e) {
+                source.failures++;
+                failedSources = true;
+            }
+        }
+        return -1;
+    }
+
+    // a session takes the manifest request right behind the size request, which saves a small file a
+    // round trip
+    private long probe(SessionPool.Session session) throws IOException {
+        if (!session.persistent) {
+            return requestSize(session, fileName);
+        }
+        writeRangeRequest(session, SessionPool.OP_RANGE, fileName, 0, 0);
+        session.begin(SessionPool.OP_MANIFEST);
+        session.out.writeUTF(fileName);
+        session.out.flush();
+        long size = readSize(session);
+        // a peer without the file has no business sending a manifest for more than nothing
+        FileManifest candidate = session.in.readBoolean() ? FileManifest.read(session.in, Math.max(size, 0)) : null;
+        if (size > 0) {
+            fileSize = size;
+            if (matches(candidate)) {
+                probedManifest = candidate;
+            }
+        }
+        return size;
+    }
+
+    boolean run() throws IOException {
+        if (fileSize <= 0 && probeSize() <= 0) {
+            System.out.println("Invalid file size received.");
+            return false;
+        }
+        manifest = fetchManifest();
+        if (manifest == null && expectedRoot != null) {
+            System.out.println("No source could provide a manifest matching " + expectedRoot);
+            return false;
+        }
+        Path partial = output.resolveSibling(output.getFileName() + ".part");
+        Path sidecar = output.resolveSibling(output.getFileName() + ".part.bitmap");
+        if (!Files.exists(partial)) {
+            Files.deleteIfExists(sidecar);
+        }
+        pieces = PieceMap.load(sidecar, manifest == null ? "" : manifest.rootHex(), fileSize, PIECE_SIZE);
+        pieceCount = pieces.pieceCount();
+        for (int i = 0; i < pieceCount; i++) {
+            if (!pieces.isDone(i)) {
+                pending.add(i);
+            }
+        }
+        completedBytes = pieces.completedBytes();
+        if (completedBytes > 0) {
+            System.out.println("Resuming " + fileName + ", " + pending.size() + " of " + pieceCount
+                    + " pieces missing");
+            progress.accept(completedBytes);
+        }
+        boolean complete;
+        if (stats != null) {
+            transfer = stats.begin(Throttle.Direction.DOWN, fileName, sources.size() + " source(s)", null, fileSize,
+                    completedBytes);
+        }
+        try (FileChannel channel = FileChannel.open(partial, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            channel.truncate(fileSize);
+            if (channel.size() < fileSize) {
+                channel.write(ByteBuffer.allocate(1), fileSize - 1);
+            }
+            this.channel = channel;
+            lastSave = System.currentTimeMillis();
+            workers = Executors.newCachedThreadPool();
+            synchronized (this) {
+                for (Source source : sources) {
+                    start(source);
+                }
+                grow();
+                try {
+                    while (running > 0) {
+                        wait();
+                    }
+                } catch (InterruptedException e) {
+                    workers.shutdownNow();
+                    Thread.currentThread().interrupt();
+                }
+                finished = true;
+                workers.shutdown();
+                complete = pieces.isComplete();
+                channel.force(complete);
+                if (!complete) {
+                    pieces.save();
+                }
+            }
+        } finally {
+            if (transfer != null) {
+                transfer.close();
+            }
+        }
+        if (complete) {
+            try {
+                Files.move(partial, output, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(partial, output, StandardCopyOption.REPLACE_EXISTING);
+            }
+            pieces.delete();
+        }
+        return complete;
+    }
+
+    // callers hold the lock
+    private void start(Source source) {
+        running++;
+        workers.execute(() -> {
+            try {
+                work(source);
+            } finally {
+                synchronized (this) {
+                    running--;
+                    if (!pieces.isComplete()) {
+                        grow();
+                    }
+                    notifyAll();
+                }
+            }
+        });
+    }
+
+    // asks the sources we have for others and starts workers for new ones while there is room; runs
+    // at the start and whenever a source goes away. Callers hold the lock.
+    private void grow() {
+        if (exchange == null || growing || finished) {
+            return;
+        }
+        growing = true;
+        running++;
+        List<InetSocketAddress> asked = new ArrayList<>();
+        for (Source source : sources) {
+            if (source.failures < MAX_FAILURES) {
+                asked.add(source.address);
+            }
+        }
+        workers.execute(() -> {
+            try {
+                for (InetSocketAddress address : asked) {
+                    try {
+                        exchange.exchange(address, fileName);
+                    } catch (IOException e) {
+                        // its worker will find out
+                    }
+                }
+                synchronized (this) {
+                    addSources();
+                }
+            } finally {
+                synchronized (this) {
+                    growing = false;
+                    running--;
+                    notifyAll();
+                }
+            }
+        });
+    }
+
+    private void addSources() {
+        int live = 0;
+        for (Source source : sources) {
+            if (source.failures < MAX_FAILURES) {
+                live++;
+            }
+        }
+        if (finished || pieces.isComplete() || live >= MAX_SOURCES) {
+            return;
+        }
+        List<InetSocketAddress> candidates = new ArrayList<>();
+        for (InetSocketAddress address : exchange.holders(fileName, null, PeerExchange.MAX_PEERS)) {
+            if (!tried.contains(address)) {
+                candidates.add(address);
+            }
+        }
+        int room = MAX_SOURCES - live;
+        List<InetSocketAddress> chosen = picker == null ? candidates.subList(0, Math.min(room, candidates.size()))
+                : picker.choose(candidates, room, PIECE_SIZE);
+        for (InetSocketAddress address : chosen) {
+            Source source = new Source(address);
+            sources.add(source);
+            tried.add(address);
+            start(source);
+        }
+        if (!chosen.isEmpty()) {
+            System.out.println("Found " + chosen.size() + " more source(s) for " + fileName + " through other peers");
+        }
+    }
+
+    // keeps up to PIPELINE_DEPTH pieces requested on one session, so the source starts on the next piece
+    // as soon as it has sent the last one
+    private void work(Source source) {
+        // replies are read one after another, so one piece buffer serves every request; the first piece is
+        // the largest
+        byte[] data = new byte[pieces.pieceLength(0)];
+        byte[] buffer = new byte[Math.max(Throttle.QUANTUM, DeflateTransfer.BLOCK_SIZE)];
+        // oldest first; every one holds a slot
+        Deque<Request> requested = new ArrayDeque<>();
+        SessionPool.Session session = null;
+        boolean reused = false;
+        Semaphore slot = picker == null ? null : picker.slot(source.address);
+        try {
+            while (true) {
+                if (requested.isEmpty()) {
+                    Integer piece = nextPiece(source, true);
+                    if (piece == null) {
+                        return;
+                    }
+                    if (slot != null) {
+                        try {
+                            slot.acquire();
+                        } catch (InterruptedException e) {
+                            finishPiece(piece, false);
+                            Thread.currentThread().interrupt();
+                            return;
+                        }
+                    }
+                    requested.add(new Request(piece));
+                }
+                try {
+                    if (session == null) {
+                        session = sessions.borrow(source.address);
+                        reused = session.requests() > 0;
+                    }
+                    Request first = requested.peekFirst();
+                    if (!first.written) {
+                        writeRangeRequest(session, first.piece);
+                        first.written = true;
+                    }
+                    while (session.persistent && requested.size() < PIPELINE_DEPTH
+                            && (slot == null || slot.tryAcquire())) {
+                        Integer piece = nextPiece(source, false);
+                        if (piece == null) {
+                            if (slot != null) {
+                                slot.release();
+                            }
+                            break;
+                        }
+                        Request request = new Request(piece);
+                        requested.add(request);
+                        writeRangeRequest(session, piece);
+                        request.written = true;
+                    }
+                    session.out.flush();
+                    Request next = requested.peekFirst();
+                    long start = System.nanoTime();
+                    long received = fetch(session, next.piece, data, buffer);
+                    synchronized (this) {
+                        source.bytes += received;
+                        source.nanos += System.nanoTime() - start;
+                    }
+                    requested.pollFirst();
+                    finishPiece(next.piece, received > 0);
+                    if (slot != null) {
+                        slot.release();
+                    }
+                    if (received == 0 || !session.persistent) {
+                        // a one-shot connection is spent, and one we stopped reading midway is out of step
+                        session.close();
+                        session = null;
+                        giveBack(requested, slot);
+                    } else if (requested.isEmpty()) {
+                        sessions.release(session);
+                        session = null;
+                    }
+                    reused = false;
+                } catch (IOException e) {
+                    if (session != null) {
+                        session.close();
+                        session = null;
+                    }
+                    giveBack(requested, slot);
+                    if (reused) {
+                        // the source may just have closed a connection that sat idle too long
+                        reused = false;
+                        continue;
+                    }
+                    failedSources = true;
+                    if (picker != null) {
+                        picker.failed(source.address);
+                    }
+                    if (exchange != null) {
+                        exchange.forget(fileName, source.address);
+                    }
+                    synchronized (this) {
+                        if (++source.failures >= MAX_FAILURES) {
+                            return;
+                        }
+                    }
+                }
+            }
+        } finally {
+            if (session != null) {
+                session.close();
+            }
+            giveBack(requested, slot);
+            if (slot != null) {
+                picker.releaseSlot(source.address);
+            }
+            synchronized (this) {
+                source.failures = MAX_FAILURES;
+                notifyAll();
+            }
+        }
+    }
+
+    private void giveBack(Deque<Request> requested, Semaphore slot) {
+        Request request;
+        while ((request = requested.pollFirst()) != null) {
+            finishPiece(request.piece, false);
+            if (slot != null) {
+                slot.release();
+            }
+        }
+    }
+
+    // without wait, only a pending piece that can be had right away, for pipelining
+    private synchronized Integer nextPiece(Source source, boolean wait) {
+        while (true) {
+            if (pieces.isComplete()) {
+                return null;
+            }
+            // near the tail, leave the remaining pieces to sources that are clearly faster
+            if (pending.size() <= sources.size() && isSlow(source)) {
+                if (!wait) {
+                    return null;
+                }
+                try {
+                    wait(500);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return null;
+                }
+                if (isSlow(source)) {
+                    continue;
+                }
+            }
+            Integer piece = pending.poll();
+            if (piece != null) {
+                inFlight.merge(piece, 1, Integer::sum);
+                return piece;
+            }
+            if (!wait) {
+                return null;
+            }
+            // end game: duplicate the least contended piece still in flight so a slow source can't stall the tail
+            Integer candidate = null;
+            int fetchers = MAX_DUPLICATES;
+            for (Map.Entry<Integer, Integer> entry : inFlight.entrySet()) {
+                if (entry.getValue() < fetchers) {
+                    candidate = entry.getKey();
+                    fetchers = entry.getValue();
+                }
+            }
+            if (candidate != null) {
+                inFlight.merge(candidate, 1, Integer::sum);
+                return candidate;
+            }
+            if (inFlight.isEmpty()) {
+                return null;
+            }
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            }
+        }
+    }
+
+    private boolean isSlow(Source source) {
+        double best = 0;
+        for (Source other : sources) {
+            if (other.failures < MAX_FAILURES) {
+                best = Math.max(best, other.throughput());
+            }
+        }
+        return source.throughput() * SLOW_FACTOR < best;
+    }
+
+    private synchronized void finishPiece(int piece, boolean completed) {
+        Integer fetchers = inFlight.get(piece);
+        if (fetchers != null) {
+            if (fetchers <= 1) {
+                inFlight.remove(piece);
+            } else {
+                inFlight.put(piece, fetchers - 1);
+            }
+        }
+        if (completed && !pieces.isDone(piece)) {
+            pieces.markDone(piece);
+            inFlight.remove(piece);
+            completedBytes += pieces.pieceLength(piece);
+            progress.accept(completedBytes);
+            checkpoint();
+        } else if (!pieces.isDone(piece) && !inFlight.containsKey(piece)) {
+            pending.addFirst(piece);
+        }
+        notifyAll();
+    }
+
+    // pieces are made durable before the bitmap that claims them is written
+    private void checkpoint() {
+        long now = System.currentTimeMillis();
+        if (++unsavedPieces < SAVE_EVERY_PIECES && now - lastSave < SAVE_INTERVAL_MS) {
+            return;
+        }
+        try {
+            channel.force(false);
+            pieces.save();
+            unsavedPieces = 0;
+            lastSave = now;
+        } catch (IOException e) {
+            System.out.println("Couldn't save download state for " + fileName + ": " + e.getMessage());
+        }
+    }
+
+    private boolean isDone(int piece) {
+        return pieces.isDone(piece);
+    }
+
+    private static void writeRangeRequest(SessionPool.Session session, int op, String fileName, long offset,
+            long length) throws IOException {
+        session.begin(op);
+        session.out.writeUTF(fileName);
+        session.out.writeLong(offset);
+        session.out.writeLong(length);
+    }
+
+    // pieces come deflated from sources that offer it, when we asked for compression
+    private void writeRangeRequest(SessionPool.Session session, int piece) throws IOException {
+        writeRangeRequest(session, session.deflate ? SessionPool.OP_RANGE_DEFLATE : SessionPool.OP_RANGE, fileName,
+                (long) piece * PIECE_SIZE, pieces.pieceLength(piece));
+    }
+
+    // reads the reply to a range request already sent into data, which holds a whole piece. A pipelined
+    // reply may already be on its way when we get to it, so the round trip measured here is the wait we
+    // actually see. Returns 0 when the piece was finished elsewhere midway, leaving the reply partly unread.
+    private long fetch(SessionPool.Session session, int piece, byte[] data, byte[] buffer) throws IOException {
+        InetSocketAddress address = session.address;
+        long offset = (long) piece * PIECE_SIZE;
+        int length = pieces.pieceLength(piece);
+        long started = System.nanoTime();
+        DataInputStream dis = session.in;
+        try (Throttle.Limiter limiter = throttle == null ? Throttle.UNLIMITED
+                : throttle.open(Throttle.Direction.DOWN, fileName)) {
+            if (dis.readLong() != fileSize || dis.readLong() != length) {
+                throw new IOException("Unexpected range reply from " + address);
+            }
+            long answered = System.nanoTime();
+            TransferStats.Remote remote = transfer == null ? null : stats.remote(address.getAddress());
+            DeflateTransfer.Reader blocks = session.deflate ? new DeflateTransfer.Reader(dis) : null;
+            // the piece stays in memory until it is verified: in the end game another source may be fetching
+            // the same piece, and bad bytes must never land on top of a piece that already checked out
+            MessageDigest digest = FileManifest.sha256();
+            int received = 0;
+            while (received < length) {
+                if (isDone(piece)) {
+                    return 0;
+                }
+                int bytesRead;
+                int wireBytes;
+                if (blocks == null) {
+                    bytesRead = dis.read(buffer, 0, Math.min(Throttle.QUANTUM, length - received));
+                    if (bytesRead == -1) {
+                        throw new EOFException("Connection closed by " + address);
+                    }
+                    wireBytes = bytesRead;
+                } else {
+                    bytesRead = blocks.read(buffer, length - received);
+                    wireBytes = blocks.wireLength();
+                }
+                System.arraycopy(buffer, 0, data, received, bytesRead);
+                digest.update(buffer, 0, bytesRead);
+                received += bytesRead;
+                if (transfer != null) {
+                    transfer.add(bytesRead, remote);
+                }
+                // the limit is on what crosses the network
+                limiter.acquire(wireBytes);
+            }
+            if (manifest != null && !manifest.verifyPiece(piece, digest.digest())) {
+                throw new IOException("Piece " + piece + " from " + address + " failed verification");
+            }
+            // another source may have finished the piece while this one was verified
+            if (!isDone(piece)) {
+                ByteBuffer chunk = ByteBuffer.wrap(data, 0, length);
+                long position = offset;
+                while (chunk.hasRemaining()) {
+                    position += channel.write(chunk, position);
+                }
+            }
+            if (picker != null) {
+                picker.record(address, answered - started, received, System.nanoTime() - answered);
+            }
+            return received;
+        }
+    }
+
+    // the size the source has, or -1 when it doesn't have the file
+    static long requestSize(SessionPool.Session session, String fileName) throws IOException {
+        writeRangeRequest(session, SessionPool.OP_RANGE, fileName, 0, 0);
+        session.out.flush();
+        return readSize(session);
+    }
+
+    private static long readSize(SessionPool.Session session) throws IOException {
+        long size = session.in.readLong();
+        if (size >= 0 && session.in.readLong() != 0) {
+            throw new IOException("Unexpected size reply from " + session.address);
+        }
+        return size;
+    }
+
+    static FileManifest requestManifest(SessionPool.Session session, String fileName, long expectedSize)
+            throws IOException {
+        session.begin(SessionPool.OP_MANIFEST);
+        session.out.writeUTF(fileName);
+        session.out.flush();
+        return session.in.readBoolean() ? FileManifest.read(session.in, expectedSize) : null;
+    }
+}
@@ -0,0 +1,166 @@
+package Peer;
+
+import java.io.Closeable;
+import java.io.InterruptedIOException;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+// Bandwidth limits for each direction at three levels: everything, each file and each
+// connection. A transfer asks for every chunk at all three levels and waits for the slowest.
+final class Throttle {
+    static final int QUANTUM = 64 * 1024;
+    static final Limiter UNLIMITED = new Limiter(null, null, null, null, null);
+
+    enum Direction {
+        UP, DOWN
+    }
+
+    enum Scope {
+        GLOBAL, FILE, CONNECTION
+    }
+
+    private static final class Shared {
+        final TokenBucket bucket;
+        int users;
+
+        Shared(long rate) {
+            this.bucket = new TokenBucket(rate);
+        }
+    }
+
+    private final TokenBucket[] global = { new TokenBucket(0), new TokenBucket(0) };
+    private final long[] fileRates = new long[2];
+    private final long[] connectionRates = new long[2];
+    // indexed by direction, like the arrays above
+    private final List<Map<String, Shared>> files = List.of(new ConcurrentHashMap<>(), new ConcurrentHashMap<>());
+    private final List<Set<Limiter>> open = List.of(ConcurrentHashMap.newKeySet(), ConcurrentHashMap.newKeySet());
+
+    static final class Limiter implements Closeable {
+        private final Throttle throttle;
+        private final Direction direction;
+        private final String fileName;
+        private final TokenBucket connection;
+        private final Shared file;
+
+        private Limiter(Throttle throttle, Direction direction, String fileName, TokenBucket connection,
+                Shared file) {
+            this.throttle = throttle;
+            this.direction = direction;
+            this.fileName = fileName;
+            this.connection = connection;
+            this.file = file;
+        }
+
+        boolean isLimited() {
+            return throttle != null && (connection.getRate() > 0 || file.bucket.getRate() > 0
+                    || throttle.global[direction.ordinal()].getRate() > 0);
+        }
+
+        // blocks until the bytes may be transferred
+        void acquire(long bytes) throws InterruptedIOException {
+            if (throttle == null) {
+                return;
+            }
+            long wait = Math.max(connection.reserve(bytes),
+                    Math.max(file.bucket.reserve(bytes), throttle.global[direction.ordinal()].reserve(bytes)));
+            if (wait > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(wait);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while throttled");
+                }
+            }
+        }
+
+        @Override
+        public void close() {
+            if (throttle != null) {
+                throttle.release(this);
+            }
+        }
+    }
+
+    synchronized Limiter open(Direction direction, String fileName) {
+        int d = direction.ordinal();
+        Shared file = files.get(d).compute(fileName, (k, shared) -> {
+            if (shared == null) {
+                shared = new Shared(fileRates[d]);
+            }
+            shared.users++;
+            return shared;
+        });
+        Limiter limiter = new Limiter(this, direction, fileName, new TokenBucket(connectionRates[d]), file);
+        open.get(d).add(limiter);
+        return limiter;
+    }
+
+    private void release(Limiter limiter) {
+        int d = limiter.direction.ordinal();
+        if (open.get(d).remove(limiter)) {
+            files.get(d).computeIfPresent(limiter.fileName, (k, shared) -> --shared.users == 0 ? null : shared);
+        }
+    }
+
+    // applies to running transfers too; a rate of 0 means unlimited
+    synchronized void setRate(Direction direction, Scope scope, long rate) {
+        int d = direction.ordinal();
+        if (scope == Scope.GLOBAL) {
+            global[d].setRate(rate);
+        } else if (scope == Scope.FILE) {
+            fileRates[d] = rate;
+            for (Shared shared : files.get(d).values()) {
+                shared.bucket.setRate(rate);
+            }
+        } else {
+            connectionRates[d] = rate;
+            for (Limiter limiter : open.get(d)) {
+                limiter.connection.setRate(rate);
+            }
+        }
+    }
+
+    synchronized long getRate(Direction direction, Scope scope) {
+        int d = direction.ordinal();
+        if (scope == Scope.GLOBAL) {
+            return global[d].getRate();
+        }
+        return scope == Scope.FILE ? fileRates[d] : connectionRates[d];
+    }
+
+    int activeTransfers(Direction direction) {
+        return open.get(direction.ordinal()).size();
+    }
+
+    // accepts plain bytes per second or a K, M or G suffix; "off" and 0 mean unlimited
+    static long parseRate(String value) {
+        String rate = value.trim().toUpperCase();
+        if (rate.equals("OFF")) {
+            return 0;
+        }
+        long multiplier = 1;
+        char unit = rate.charAt(rate.length() - 1);
+        if (unit == 'K' || unit == 'M' || unit == 'G') {
+            multiplier = unit == 'K' ? 1L << 10 : unit == 'M' ? 1L << 20 : 1L << 30;
+            rate = rate.substring(0, rate.length() - 1);
+        }
+        long parsed = (long) (Double.parseDouble(rate) * multiplier);
+        if (parsed < 0) {
+            throw new NumberFormatException("Negative rate: " + value);
+        }
+        return parsed;
+    }
+
+    static String formatRate(long rate) {
+        if (rate <= 0) {
+            return "unlimited";
+        }
+        if (rate >= 1L << 20) {
+            return String.format("%.1f MiB/s", rate / (double) (1L << 20));
+        }
+        return String.format("%.1f KiB/s", rate / 1024.0);
+    }
+}
@@ -0,0 +1,52 @@
+package Peer;
+
+// Refills lazily from the clock on every reservation, so there is no ticker thread.
+// Reservations may run the bucket into debt; the caller then waits for the debt to be
+// paid off, which queues concurrent transfers behind each other in arrival order.
+final class TokenBucket {
+    private static final long MIN_BURST = 64 * 1024;
+
+    private volatile long rate;
+    private double tokens;
+    private long last = System.nanoTime();
+
+    TokenBucket(long rate) {
+        this.rate = rate;
+    }
+
+    long getRate() {
+        return rate;
+    }
+
+    synchronized void setRate(long rate) {
+        refill(System.nanoTime());
+        this.rate = rate;
+        tokens = Math.min(tokens, burst());
+    }
+
+    // returns how many nanoseconds the caller has to wait before sending the bytes
+    long reserve(long bytes) {
+        if (rate <= 0) {
+            return 0;
+        }
+        synchronized (this) {
+            if (rate <= 0) {
+                return 0;
+            }
+            refill(System.nanoTime());
+            tokens -= bytes;
+            return tokens >= 0 ? 0 : (long) (-tokens * 1e9 / rate);
+        }
+    }
+
+    private void refill(long now) {
+        if (rate > 0) {
+            tokens = Math.min(burst(), tokens + (now - last) * (double) rate / 1e9);
+        }
+        last = now;
+    }
+
+    private double burst() {
+        return Math.max(MIN_BURST, rate / 4.0);
+    }
+}
@@ -0,0 +1,321 @@
+package Peer;
+
+import Common.TrackerProtocol;
+
+import java.io.IOException;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Talks to a tracker in the binary protocol, falling back to the old text commands
+// for trackers that answer a binary packet with anything that isn't binary.
+class TrackerClient {
+    private static final int TIMEOUT_MS = 3000;
+    private static final int RETRIES = 2;
+    private static final int MAX_TEXT_REPLY = 65507;
+    private static final int MAX_PAGES = 1024;
+    private static final Map<InetSocketAddress, Boolean> binaryTrackers = new ConcurrentHashMap<>();
+    private static final AtomicInteger requestIds = new AtomicInteger(new Random().nextInt());
+
+    static final class Lookup {
+        final List<InetSocketAddress> sources;
+        final String rootHash;
+
+        Lookup(List<InetSocketAddress> sources, String rootHash) {
+            this.sources = sources;
+            this.rootHash = rootHash;
+        }
+    }
+
+    static final class Renewal {
+        // false when the tracker holds nothing for this peer and wants its files announced again
+        final boolean known;
+        // how long the tracker keeps us without another keepalive; 0 when it probes us instead
+        final long leaseMs;
+
+        Renewal(boolean known, long leaseMs) {
+            this.known = known;
+            this.leaseMs = leaseMs;
+        }
+    }
+
+    private final InetAddress tracker;
+    private final int trackerPort;
+    private final InetSocketAddress key;
+
+    // trackerAddress is "host" or "host:port"
+    TrackerClient(String trackerAddress, int defaultPort) throws UnknownHostException {
+        int colon = trackerAddress.lastIndexOf(':');
+        if (colon > 0 && trackerAddress.indexOf(':') == colon) {
+            try {
+                defaultPort = Integer.parseInt(trackerAddress.substring(colon + 1));
+                trackerAddress = trackerAddress.substring(0, colon);
+            } catch (NumberFormatException e) {
+                throw new UnknownHostException("Invalid tracker port: " + trackerAddress);
+            }
+        }
+        this.tracker = InetAddress.getByName(trackerAddress);
+        this.trackerPort = defaultPort;
+        this.key = new InetSocketAddress(tracker, trackerPort);
+    }
+
+    // announces every file in one or more datagrams; returns whether each file was accepted
+    Map<String, Boolean> share(Map<String, String> rootHashes, int listenPort, int serverPort, int pingPort)
+            throws IOException {
+        Map<String, Boolean> results = new LinkedHashMap<>();
+        if (!Boolean.FALSE.equals(binaryTrackers.get(key))) {
+            try (DatagramSocket socket = new DatagramSocket()) {
+                socket.setSoTimeout(TIMEOUT_MS);
+                List<String> batch = new ArrayList<>();
+                int batchSize = TrackerProtocol.HEADER_SIZE + 6;
+                for (Map.Entry<String, String> file : rootHashes.entrySet()) {
+                    int size = TrackerProtocol.stringSize(file.getKey()) + TrackerProtocol.hashSize(file.getValue());
+                    if (!batch.isEmpty() && batchSize + size > TrackerProtocol.MAX_DATAGRAM) {
+                        if (!shareBatch(socket, batch, rootHashes, serverPort, pingPort, results)) {
+                            break;
+                        }
+                        batch.clear();
+                        batchSize = TrackerProtocol.HEADER_SIZE + 6;
+                    }
+                    batch.add(file.getKey());
+                    batchSize += size;
+                }
+                if (!batch.isEmpty()) {
+                    shareBatch(socket, batch, rootHashes, serverPort, pingPort, results);
+                }
+            }
+            if (!Boolean.FALSE.equals(binaryTrackers.get(key))) {
+                return results;
+            }
+        }
+        try (DatagramSocket socket = new DatagramSocket(listenPort)) {
+            socket.setSoTimeout(TIMEOUT_MS);
+            for (Map.Entry<String, String> file : rootHashes.entrySet()) {
+                if (results.containsKey(file.getKey())) {
+                    continue;
+                }
+                String message = "share " + file.getKey() + " " + tracker.getHostAddress() + " " + listenPort + " "
+                        + serverPort + " " + pingPort + (file.getValue() == null ? "" : " " + file.getValue());
+                String response = exchangeText(socket, message);
+                results.put(file.getKey(), response.startsWith("File shared successfully"));
+            }
+        }
+        return results;
+    }
+
+    private boolean shareBatch(DatagramSocket socket, List<String> batch, Map<String, String> rootHashes,
+            int serverPort, int pingPort, Map<String, Boolean> results) throws IOException {
+        int requestId = requestIds.incrementAndGet();
+        ByteBuffer request = ByteBuffer.allocate(TrackerProtocol.MAX_DATAGRAM);
+        TrackerProtocol.putHeader(request, TrackerProtocol.OP_SHARE, requestId);
+        request.putShort((short) serverPort).putShort((short) pingPort).putShort((short) batch.size());
+        for (String fileName : batch) {
+            TrackerProtocol.putString(request, fileName);
+            TrackerProtocol.putHash(request, rootHashes.get(fileName));
+        }
+        ByteBuffer reply = exchange(socket, request, requestId);
+        if (reply == null) {
+            return false;
+        }
+        expect(reply, TrackerProtocol.OP_SHARE_REPLY);
+        int count = TrackerProtocol.getPort(reply);
+        for (int i = 0; i < count && i < batch.size(); i++) {
+            results.put(batch.get(i), reply.get() == TrackerProtocol.STATUS_OK);
+        }
+        return true;
+    }
+
+    // follows continuation cursors until every page is in; returns null when no peer has the file
+    Lookup get(String fileName) throws IOException {
+        try (DatagramSocket socket = new DatagramSocket()) {
+            socket.setSoTimeout(TIMEOUT_MS);
+            if (!Boolean.FALSE.equals(binaryTrackers.get(key))) {
+                Lookup lookup = getBinary(socket, fileName);
+                if (!Boolean.FALSE.equals(binaryTrackers.get(key))) {
+                    return lookup;
+                }
+            }
+            return parseText(exchangeText(socket, "get " + fileName));
+        }
+    }
+
+    private Lookup getBinary(DatagramSocket socket, String fileName) throws IOException {
+        Set<InetSocketAddress> sources = new LinkedHashSet<>();
+        String rootHash = null;
+        String cursor = "";
+        for (int page = 0; page < MAX_PAGES; page++) {
+            int requestId = requestIds.incrementAndGet();
+            ByteBuffer request = ByteBuffer.allocate(TrackerProtocol.MAX_DATAGRAM);
+            TrackerProtocol.putHeader(request, TrackerProtocol.OP_GET, requestId);
+            TrackerProtocol.putString(request, fileName);
+            TrackerProtocol.putString(request, cursor);
+            ByteBuffer reply = exchange(socket, request, requestId);
+            if (reply == null) {
+                return null;
+            }
+            if (reply.get(2) == TrackerProtocol.OP_NOT_FOUND) {
+                break;
+            }
+            expect(reply, TrackerProtocol.OP_PEERS);
+            rootHash = TrackerProtocol.getHash(reply);
+            reply.getInt();
+            cursor = TrackerProtocol.getString(reply);
+            int count = TrackerProtocol.getPort(reply);
+            for (int i = 0; i < count; i++) {
+                sources.add(TrackerProtocol.getAddress(reply));
+            }
+            if (cursor.isEmpty()) {
+                break;
+            }
+        }
+        return sources.isEmpty() ? null : new Lookup(new ArrayList<>(sources), rootHash);
+    }
+
+    private static Lookup parseText(String response) {
+        if (response.equals("File not found")) {
+            return null;
+        }
+        String rootHash = null;
+        int rootIndex = response.indexOf(" root=");
+        if (rootIndex >= 0) {
+            rootHash = response.substring(rootIndex + " root=".length()).trim();
+            response = response.substring(0, rootIndex);
+        }
+        List<InetSocketAddress> sources = new ArrayList<>();
+        for (String info : response.split(",")) {
+            String[] peerInfo = info.trim().split(":");
+            sources.add(new InetSocketAddress(peerInfo[0], Integer.parseInt(peerInfo[1])));
+        }
+        return new Lookup(sources, rootHash);
+    }
+
+    // fire-and-forget; text unless this tracker is already known to speak binary
+    void ack(String fileName, boolean success, int filePort, int serverPort, int pingPort, String rootHash)
+            throws IOException {
+        try (DatagramSocket socket = new DatagramSocket()) {
+            byte[] buffer;
+            if (Boolean.TRUE.equals(binaryTrackers.get(key))) {
+                ByteBuffer request = ByteBuffer.allocate(TrackerProtocol.MAX_DATAGRAM);
+                TrackerProtocol.putHeader(request, TrackerProtocol.OP_ACK, requestIds.incrementAndGet());
+                request.put((byte) (success ? 1 : 0)).putShort((short) serverPort).putShort((short) pingPort);
+                TrackerProtocol.putString(request, fileName);
+                TrackerProtocol.putHash(request, rootHash);
+                buffer = Arrays.copyOf(request.array(), request.position());
+            } else {
+                String message = "ack " + fileName + " " + filePort + " " + (success ? "success" : "failure") + " "
+                        + pingPort + " " + serverPort + (rootHash == null ? "" : " " + rootHash);
+                buffer = message.getBytes(StandardCharsets.UTF_8);
+            }
+            socket.send(new DatagramPacket(buffer, buffer.length, tracker, trackerPort));
+        }
+    }
+
+    // sends the upload load and as many pending changes as fit in one datagram, taking the ones sent out of
+    // adds and removes; returns null for trackers that only speak text and so can't hold a lease
+    Renewal keepalive(int serverPort, int pingPort, int uploads, int uploadSlots, long uploadRate,
+            Map<String, String> adds, Set<String> removes) throws IOException {
+        if (Boolean.FALSE.equals(binaryTrackers.get(key))) {
+            return null;
+        }
+        int requestId = requestIds.incrementAndGet();
+        ByteBuffer request = ByteBuffer.allocate(TrackerProtocol.MAX_DATAGRAM);
+        TrackerProtocol.putHeader(request, TrackerProtocol.OP_KEEPALIVE, requestId);
+        request.putShort((short) serverPort).putShort((short) pingPort)
+                .putShort((short) Math.min(uploads, 0xffff)).putShort((short) Math.min(uploadSlots, 0xffff))
+                .putLong(uploadRate);
+        List<String> sentAdds = new ArrayList<>();
+        int countAt = request.position();
+        request.putShort((short) 0);
+        for (Map.Entry<String, String> file : adds.entrySet()) {
+            int size = TrackerProtocol.stringSize(file.getKey()) + TrackerProtocol.hashSize(file.getValue());
+            if (request.remaining() < size + 2) {
+                break;
+            }
+            TrackerProtocol.putString(request, file.getKey());
+            TrackerProtocol.putHash(request, file.getValue());
+            sentAdds.add(file.getKey());
+        }
+        request.putShort(countAt, (short) sentAdds.size());
+        List<String> sentRemoves = new ArrayList<>();
+        countAt = request.position();
+        request.putShort((short) 0);
+        for (String fileName : removes) {
+            if (request.remaining() < TrackerProtocol.stringSize(fileName)) {
+                break;
+            }
+            TrackerProtocol.putString(request, fileName);
+            sentRemoves.add(fileName);
+        }
+        request.putShort(countAt, (short) sentRemoves.size());
+        try (DatagramSocket socket = new DatagramSocket()) {
+            socket.setSoTimeout(TIMEOUT_MS);
+            ByteBuffer reply = exchange(socket, request, requestId);
+            if (reply == null) {
+                return null;
+            }
+            expect(reply, TrackerProtocol.OP_KEEPALIVE_REPLY);
+            adds.keySet().removeAll(sentAdds);
+            removes.removeAll(sentRemoves);
+            return new Renewal(reply.get() != TrackerProtocol.STATUS_UNKNOWN, reply.getInt() & 0xffffffffL);
+        }
+    }
+
+    // returns the reply positioned after its header, or null once the tracker turned out to be text-only
+    private ByteBuffer exchange(DatagramSocket socket, ByteBuffer request, int requestId) throws IOException {
+        DatagramPacket packet = new DatagramPacket(request.array(), request.position(), tracker, trackerPort);
+        byte[] receiveBuffer = new byte[TrackerProtocol.MAX_DATAGRAM];
+        for (int attempt = 0; attempt <= RETRIES; attempt++) {
+            socket.send(packet);
+            try {
+                while (true) {
+                    DatagramPacket response = new DatagramPacket(receiveBuffer, receiveBuffer.length);
+                    socket.receive(response);
+                    ByteBuffer reply = ByteBuffer.wrap(receiveBuffer, 0, response.getLength());
+                    if (!TrackerProtocol.isBinary(reply)) {
+                        binaryTrackers.put(key, false);
+                        return null;
+                    }
+                    if (reply.getInt(3) != requestId) {
+                        continue; // a late answer to an earlier attempt
+                    }
+                    binaryTrackers.put(key, true);
+                    reply.position(TrackerProtocol.HEADER_SIZE);
+                    if (reply.get(2) == TrackerProtocol.OP_ERROR) {
+                        reply.get();
+                        throw new IOException("Tracker error: " + TrackerProtocol.getString(reply));
+                    }
+                    return reply;
+                }
+            } catch (SocketTimeoutException e) {
+                // resend
+            }
+        }
+        throw new SocketTimeoutException("Tracker did not respond in time.");
+    }
+
+    private String exchangeText(DatagramSocket socket, String message) throws IOException {
+        byte[] buffer = message.getBytes(StandardCharsets.UTF_8);
+        DatagramPacket packet = new DatagramPacket(buffer, buffer.length, tracker, trackerPort);
+        byte[] receiveBuffer = new byte[MAX_TEXT_REPLY];
+        for (int attempt = 0; attempt <= RETRIES; attempt++) {
+            socket.send(packet);
+            try {
+                DatagramPacket response = new DatagramPacket(receiveBuffer, receiveBuffer.length);
+                socket.receive(response);
+                return new String(response.getData(), 0, response.getLength(), StandardCharsets.UTF_8).trim();
+            } catch (SocketTimeoutException e) {
+                // resend
+            }
+        }
+        throw new SocketTimeoutException("Tracker did not respond in time.");
+    }
+
+    private static void expect(ByteBuffer reply, byte op) throws IOException {
+        if (reply.get(2) != op) {
+            throw new IOException("Unexpected tracker reply op " + reply.get(2));
+        }
+    }
+}
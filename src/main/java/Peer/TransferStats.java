@@ -0,0 +1,371 @@
+package Peer;
+
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+import java.io.Closeable;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+// Byte counts for every running transfer and every remote peer. Transfers only bump atomic
+// counters; a single sampler thread turns them into rates and draws the status line, so fast
+// links don't pay for printing and concurrent transfers don't garble each other's output.
+final class TransferStats implements TransferStatsMBean {
+    private static final double SMOOTHING = 0.5;
+    private static final int MAX_SHOWN = 3;
+    // a remote nothing has moved to or from for this long, and with no transfer open, is forgotten
+    private static final long REMOTE_IDLE_NS = TimeUnit.MINUTES.toNanos(10);
+    private static final long PRUNE_EVERY_NS = TimeUnit.MINUTES.toNanos(1);
+
+    static final class Remote {
+        final String address;
+        private final LongAdder[] bytes = { new LongAdder(), new LongAdder() };
+        private volatile long lastUsed = System.nanoTime();
+
+        Remote(String address) {
+            this.address = address;
+        }
+
+        long bytes(Throttle.Direction direction) {
+            return bytes[direction.ordinal()].sum();
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%-20s up %-12s down %s", address, formatBytes(bytes(Throttle.Direction.UP)),
+                    formatBytes(bytes(Throttle.Direction.DOWN)));
+        }
+    }
+
+    final class Transfer implements Closeable {
+        final Throttle.Direction direction;
+        final String fileName;
+        final String remote;
+        final long size;
+        final long started = System.nanoTime();
+        private final long initial;
+        private final Remote peer;
+        private final AtomicLong bytes = new AtomicLong();
+        private long reported;
+        // owned by the sampler
+        private long sampledBytes;
+        private long sampledAt = started;
+        private volatile double rate;
+
+        private Transfer(Throttle.Direction direction, String fileName, String remote, Remote peer, long size,
+                long initial) {
+            this.direction = direction;
+            this.fileName = fileName;
+            this.remote = remote;
+            this.peer = peer;
+            this.size = size;
+            this.initial = initial;
+        }
+
+        void add(long count) {
+            add(count, peer);
+        }
+
+        // for transfers fed by several peers, such as a swarm download
+        void add(long count, Remote from) {
+            bytes.addAndGet(count);
+            totals[direction.ordinal()].add(count);
+            if (from != null) {
+                from.bytes[direction.ordinal()].add(count);
+                from.lastUsed = System.nanoTime();
+            }
+        }
+
+        // takes the running total reported by FileTransfer.send and the like
+        void progress(long total) {
+            long delta = total - reported;
+            reported = total;
+            if (delta > 0) {
+                add(delta);
+            }
+        }
+
+        long done() {
+            return initial + bytes.get();
+        }
+
+        double rate() {
+            return rate;
+        }
+
+        double averageRate() {
+            long elapsed = System.nanoTime() - started;
+            return elapsed <= 0 ? 0 : bytes.get() * 1e9 / elapsed;
+        }
+
+        // seconds left at the current rate, or -1 when it can't be told
+        long eta() {
+            double current = rate > 0 ? rate : averageRate();
+            if (size <= 0 || current <= 0) {
+                return -1;
+            }
+            return (long) Math.ceil(Math.max(0, size - done()) / current);
+        }
+
+        @Override
+        public void close() {
+            active.remove(this);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%-4s %-24s %-20s %s  %s avg %s  ETA %s",
+                    direction.toString().toLowerCase(), fileName, remote, percent(this),
+                    formatRate(rate), formatRate(averageRate()), formatEta(eta()));
+        }
+    }
+
+    private final Set<Transfer> active = ConcurrentHashMap.newKeySet();
+    private final Map<String, Remote> remotes = new ConcurrentHashMap<>();
+    private final LongAdder[] totals = { new LongAdder(), new LongAdder() };
+    private final double[] rates = new double[2];
+    private volatile long[] sampledRates = new long[2];
+    private ScheduledExecutorService sampler;
+    private int lastLineLength;
+    // owned by the sampler
+    private long nextPrune = System.nanoTime() + PRUNE_EVERY_NS;
+
+    Transfer begin(Throttle.Direction direction, String fileName, InetAddress remote, long size) {
+        String address = remote.getHostAddress();
+        return begin(direction, fileName, address, remote(address), size, 0);
+    }
+
+    Transfer begin(Throttle.Direction direction, String fileName, String remote, Remote peer, long size,
+            long initial) {
+        Transfer transfer = new Transfer(direction, fileName, remote, peer, size, initial);
+        active.add(transfer);
+        return transfer;
+    }
+
+    Remote remote(InetAddress address) {
+        return remote(address.getHostAddress());
+    }
+
+    private Remote remote(String address) {
+        Remote remote = remotes.computeIfAbsent(address, Remote::new);
+        remote.lastUsed = System.nanoTime();
+        return remote;
+    }
+
+    // a transfer may still hold a remote that was just dropped; what it adds then only misses the per-peer
+    // totals, and the next lookup starts a fresh entry
+    private void prune(long now) {
+        Set<Remote> busy = new HashSet<>();
+        for (Transfer transfer : active) {
+            if (transfer.peer != null) {
+                busy.add(transfer.peer);
+            }
+        }
+        remotes.values().removeIf(remote -> now - remote.lastUsed > REMOTE_IDLE_NS && !busy.contains(remote));
+    }
+
+    // samples every intervalMs; the status line is only drawn when print is set
+    synchronized void start(long intervalMs, boolean print) {
+        if (sampler != null) {
+            return;
+        }
+        sampler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "transfer-stats");
+            thread.setDaemon(true);
+            return thread;
+        });
+        sampler.scheduleAtFixedRate(() -> {
+            sample(System.nanoTime());
+            if (print) {
+                draw();
+            }
+        }, intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    void register(int port) {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new StandardMBean(this, TransferStatsMBean.class),
+                    new ObjectName("Peer:type=TransferStats,port=" + port));
+        } catch (Exception e) {
+            System.out.println("Couldn't register transfer stats with JMX: " + e.getMessage());
+        }
+    }
+
+    private void sample(long now) {
+        double[] current = new double[2];
+        for (Transfer transfer : active) {
+            long bytes = transfer.bytes.get();
+            long elapsed = now - transfer.sampledAt;
+            if (elapsed <= 0) {
+                continue;
+            }
+            double instant = (bytes - transfer.sampledBytes) * 1e9 / elapsed;
+            transfer.rate = transfer.rate == 0 ? instant : SMOOTHING * instant + (1 - SMOOTHING) * transfer.rate;
+            transfer.sampledBytes = bytes;
+            transfer.sampledAt = now;
+            current[transfer.direction.ordinal()] += transfer.rate;
+        }
+        long[] next = new long[2];
+        for (int d = 0; d < 2; d++) {
+            rates[d] = current[d];
+            next[d] = (long) current[d];
+        }
+        sampledRates = next;
+        if (now - nextPrune >= 0) {
+            prune(now);
+            nextPrune = now + PRUNE_EVERY_NS;
+        }
+    }
+
+    private void draw() {
+        List<Transfer> downloads = new ArrayList<>();
+        int uploads = 0;
+        for (Transfer transfer : active) {
+            if (transfer.direction == Throttle.Direction.DOWN) {
+                downloads.add(transfer);
+            } else {
+                uploads++;
+            }
+        }
+        if (downloads.isEmpty() && uploads == 0) {
+            if (lastLineLength > 0) {
+                System.out.print("\r" + " ".repeat(lastLineLength) + "\r");
+                lastLineLength = 0;
+            }
+            return;
+        }
+        StringBuilder line = new StringBuilder();
+        for (int i = 0; i < downloads.size() && i < MAX_SHOWN; i++) {
+            Transfer transfer = downloads.get(i);
+            if (line.length() > 0) {
+                line.append(" | ");
+            }
+            line.append(transfer.fileName).append(' ').append(percent(transfer)).append(' ')
+                    .append(formatRate(transfer.rate)).append(" ETA ").append(formatEta(transfer.eta()));
+        }
+        if (downloads.size() > MAX_SHOWN) {
+            line.append(" | +").append(downloads.size() - MAX_SHOWN).append(" more");
+        }
+        if (uploads > 0) {
+            if (line.length() > 0) {
+                line.append(" | ");
+            }
+            line.append("up ").append(uploads).append(' ').append(formatRate(rates[Throttle.Direction.UP.ordinal()]));
+        }
+        int length = line.length();
+        for (int i = length; i < lastLineLength; i++) {
+            line.append(' ');
+        }
+        lastLineLength = length;
+        System.out.print("\r" + line);
+    }
+
+    void printStatus() {
+        if (active.isEmpty()) {
+            System.out.println("No active transfers");
+        }
+        for (Transfer transfer : active) {
+            System.out.println(transfer);
+        }
+        if (!remotes.isEmpty()) {
+            System.out.println("Peers:");
+            for (Remote remote : remotes.values()) {
+                System.out.println("  " + remote);
+            }
+        }
+    }
+
+    private static String percent(Transfer transfer) {
+        return transfer.size > 0 ? transfer.done() * 100 / transfer.size + "%" : formatBytes(transfer.done());
+    }
+
+    static String formatBytes(long bytes) {
+        if (bytes >= 1L << 30) {
+            return String.format("%.1f GiB", bytes / (double) (1L << 30));
+        }
+        if (bytes >= 1L << 20) {
+            return String.format("%.1f MiB", bytes / (double) (1L << 20));
+        }
+        return String.format("%.1f KiB", bytes / 1024.0);
+    }
+
+    static String formatRate(double rate) {
+        return formatBytes((long) rate) + "/s";
+    }
+
+    static String formatEta(long seconds) {
+        if (seconds < 0) {
+            return "--:--";
+        }
+        return seconds >= 3600 ? String.format("%d:%02d:%02d", seconds / 3600, seconds / 60 % 60, seconds % 60)
+                : String.format("%d:%02d", seconds / 60, seconds % 60);
+    }
+
+    private int count(Throttle.Direction direction) {
+        int count = 0;
+        for (Transfer transfer : active) {
+            if (transfer.direction == direction) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    @Override
+    public int getActiveUploads() {
+        return count(Throttle.Direction.UP);
+    }
+
+    @Override
+    public int getActiveDownloads() {
+        return count(Throttle.Direction.DOWN);
+    }
+
+    @Override
+    public long getBytesUploaded() {
+        return totals[Throttle.Direction.UP.ordinal()].sum();
+    }
+
+    @Override
+    public long getBytesDownloaded() {
+        return totals[Throttle.Direction.DOWN.ordinal()].sum();
+    }
+
+    @Override
+    public long getUploadRate() {
+        return sampledRates[Throttle.Direction.UP.ordinal()];
+    }
+
+    @Override
+    public long getDownloadRate() {
+        return sampledRates[Throttle.Direction.DOWN.ordinal()];
+    }
+
+    @Override
+    public String[] getTransfers() {
+        List<String> lines = new ArrayList<>();
+        for (Transfer transfer : active) {
+            lines.add(transfer.toString());
+        }
+        return lines.toArray(new String[0]);
+    }
+
+    @Override
+    public String[] getRemotePeers() {
+        List<String> lines = new ArrayList<>();
+        for (Remote remote : remotes.values()) {
+            lines.add(remote.toString());
+        }
+        return lines.toArray(new String[0]);
+    }
+}
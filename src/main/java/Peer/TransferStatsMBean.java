@@ -0,0 +1,20 @@
+package Peer;
+
+public interface TransferStatsMBean {
+    int getActiveUploads();
+
+    int getActiveDownloads();
+
+    long getBytesUploaded();
+
+    long getBytesDownloaded();
+
+    // bytes per second over the last few samples
+    long getUploadRate();
+
+    long getDownloadRate();
+
+    String[] getTransfers();
+
+    String[] getRemotePeers();
+}
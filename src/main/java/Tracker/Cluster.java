@@ -0,0 +1,286 @@
+package Tracker;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.util.*;
+import java.util.concurrent.*;
+
+// Membership and pooled connections between trackers. Members are "host:clusterPort" strings;
+// file names are partitioned over them with a HashRing.
+class Cluster implements Runnable {
+    static final byte OP_JOIN = 1;
+    static final byte OP_PING = 2;
+    static final byte OP_FORWARD = 3;
+    static final byte OP_HANDOFF = 4;
+    static final byte OP_LEAVE = 5;
+
+    private static final int HEARTBEAT_MS = 2000;
+    private static final int MAX_MISSED = 3;
+    private static final int CONNECT_TIMEOUT_MS = 2000;
+    private static final int READ_TIMEOUT_MS = 5000;
+    private static final int MAX_IDLE_CONNECTIONS = 8;
+
+    interface Request {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    interface Response<T> {
+        T read(DataInputStream in) throws IOException;
+    }
+
+    private static final class Connection {
+        final Socket socket;
+        final DataInputStream in;
+        final DataOutputStream out;
+
+        Connection(Socket socket) throws IOException {
+            this.socket = socket;
+            this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        }
+
+        // waits for the first byte of the reply without taking it; false when the other side closed or reset
+        // the connection before answering, which on a pooled connection means it went stale while idle
+        boolean answered() throws IOException {
+            in.mark(1);
+            try {
+                if (in.read() == -1) {
+                    return false;
+                }
+            } catch (SocketTimeoutException e) {
+                throw e;
+            } catch (SocketException e) {
+                return false;
+            }
+            in.reset();
+            return true;
+        }
+
+        void close() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // already gone
+            }
+        }
+    }
+
+    private final String self;
+    private final List<String> seeds;
+    private final Runnable onRingChange;
+    private final Runnable onLeave;
+    private final Set<String> members = new HashSet<>();
+    private final Map<String, Integer> missed = new ConcurrentHashMap<>();
+    private final Map<String, BlockingQueue<Connection>> idle = new ConcurrentHashMap<>();
+    private volatile HashRing ring;
+    private volatile boolean left;
+
+    Cluster(String self, List<String> seeds, Runnable onRingChange, Runnable onLeave) {
+        this.self = self;
+        this.seeds = seeds;
+        this.onRingChange = onRingChange;
+        this.onLeave = onLeave;
+        members.add(self);
+        ring = new HashRing(members);
+    }
+
+    String self() {
+        return self;
+    }
+
+    HashRing ring() {
+        return ring;
+    }
+
+    // null when this tracker owns the file
+    String remoteOwner(String fileName) {
+        HashRing current = ring;
+        if (current.size() == 1 && current.getMembers().contains(self)) {
+            return null;
+        }
+        String owner = current.owner(fileName);
+        return self.equals(owner) ? null : owner;
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (!left && !Thread.currentThread().isInterrupted()) {
+                if (ring.size() == 1) {
+                    for (String seed : seeds) {
+                        join(seed);
+                    }
+                }
+                for (String member : ring.getMembers()) {
+                    if (!member.equals(self)) {
+                        heartbeat(member);
+                    }
+                }
+                Thread.sleep(HEARTBEAT_MS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void join(String seed) {
+        try {
+            memberList(call(seed, OP_JOIN, out -> out.writeUTF(self), Cluster::readMembers));
+        } catch (IOException e) {
+            // the seed isn't up yet; try again on the next heartbeat
+        }
+    }
+
+    private void heartbeat(String member) {
+        try {
+            memberList(call(member, OP_PING, out -> out.writeUTF(self), Cluster::readMembers));
+            missed.remove(member);
+        } catch (IOException e) {
+            if (missed.merge(member, 1, Integer::sum) >= MAX_MISSED) {
+                missed.remove(member);
+                removeMember(member);
+            }
+        }
+    }
+
+    private void memberList(List<String> list) {
+        for (String member : list) {
+            memberSeen(member);
+        }
+    }
+
+    // any tracker that talks to us, or is named by one that does, becomes a member
+    void memberSeen(String member) {
+        boolean changed;
+        synchronized (members) {
+            changed = !left && members.add(member);
+            if (changed) {
+                ring = new HashRing(members);
+            }
+        }
+        if (changed) {
+            System.out.println("Tracker joined the cluster: " + member);
+            onRingChange.run();
+        }
+    }
+
+    // takes this tracker off its own ring so a rebalance hands everything over, then tells the others
+    void leave() {
+        Set<String> others;
+        synchronized (members) {
+            left = true;
+            members.remove(self);
+            ring = new HashRing(members);
+            others = new HashSet<>(members);
+        }
+        onLeave.run();
+        for (String member : others) {
+            try {
+                call(member, OP_LEAVE, out -> out.writeUTF(self), DataInputStream::readBoolean);
+            } catch (IOException e) {
+                // it will notice on its next heartbeat
+            }
+        }
+    }
+
+    void removeMember(String member) {
+        synchronized (members) {
+            if (!members.remove(member)) {
+                return;
+            }
+            ring = new HashRing(members);
+        }
+        BlockingQueue<Connection> connections = idle.remove(member);
+        if (connections != null) {
+            connections.forEach(Connection::close);
+        }
+        System.out.println("Tracker left the cluster: " + member);
+        onRingChange.run();
+    }
+
+    void writeMembers(DataOutputStream out) throws IOException {
+        Set<String> current = ring.getMembers();
+        out.writeInt(current.size());
+        for (String member : current) {
+            out.writeUTF(member);
+        }
+    }
+
+    private static List<String> readMembers(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        List<String> list = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            list.add(in.readUTF());
+        }
+        return list;
+    }
+
+    // one request/response round trip on a pooled connection. Only a pooled connection found dead before
+    // any reply is tried again: once a request may have reached the other side, a slow answer is not retried,
+    // or a forward or handoff could be applied twice.
+    <T> T call(String member, byte op, Request request, Response<T> response) throws IOException {
+        BlockingQueue<Connection> pool = idle.computeIfAbsent(member,
+                k -> new ArrayBlockingQueue<>(MAX_IDLE_CONNECTIONS));
+        Connection connection = pool.poll();
+        boolean pooled = connection != null;
+        while (true) {
+            if (connection == null) {
+                connection = open(member);
+            }
+            boolean answered;
+            try {
+                connection.out.writeByte(op);
+                request.write(connection.out);
+                connection.out.flush();
+                answered = connection.answered();
+            } catch (SocketTimeoutException e) {
+                connection.close();
+                throw e;
+            } catch (IOException e) {
+                if (!pooled) {
+                    connection.close();
+                    throw e;
+                }
+                // the write failed, so the other side had already closed the connection
+                answered = false;
+            }
+            if (!answered) {
+                connection.close();
+                if (!pooled) {
+                    throw new EOFException(member + " closed the connection without answering");
+                }
+                pooled = false;
+                connection = null;
+                continue;
+            }
+            try {
+                T result = response.read(connection.in);
+                if (!pool.offer(connection)) {
+                    connection.close();
+                }
+                return result;
+            } catch (IOException e) {
+                connection.close();
+                throw e;
+            }
+        }
+    }
+
+    private static Connection open(String member) throws IOException {
+        int colon = member.lastIndexOf(':');
+        Socket socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(member.substring(0, colon),
+                    Integer.parseInt(member.substring(colon + 1))), CONNECT_TIMEOUT_MS);
+            socket.setSoTimeout(READ_TIMEOUT_MS);
+            socket.setTcpNoDelay(true);
+            return new Connection(socket);
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+}
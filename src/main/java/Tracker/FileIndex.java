@@ -0,0 +1,97 @@
+package Tracker;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+class FileIndex {
+    private final Map<String, Entry> files = new ConcurrentHashMap<>();
+    private final AtomicLong entries = new AtomicLong();
+
+    // peers are kept sorted so a paged listing can resume after the last key it sent; the size is counted
+    // separately because a skip list counts itself by walking
+    private static final class Entry {
+        final NavigableSet<String> peers = new ConcurrentSkipListSet<>();
+        volatile int size;
+        volatile String rootHash;
+    }
+
+    void add(String fileName, String peerKey) {
+        add(fileName, peerKey, null);
+    }
+
+    // returns false when the file is already indexed with different content
+    boolean add(String fileName, String peerKey, String rootHash) {
+        boolean[] added = new boolean[1];
+        files.compute(fileName, (k, entry) -> {
+            if (entry == null) {
+                entry = new Entry();
+            }
+            if (rootHash != null && entry.rootHash != null && !entry.rootHash.equals(rootHash)) {
+                return entry;
+            }
+            if (rootHash != null) {
+                entry.rootHash = rootHash;
+            }
+            if (entry.peers.add(peerKey)) {
+                entry.size++;
+                entries.incrementAndGet();
+            }
+            added[0] = true;
+            return entry;
+        });
+        return added[0];
+    }
+
+    void remove(String fileName, String peerKey) {
+        files.computeIfPresent(fileName, (k, entry) -> {
+            if (entry.peers.remove(peerKey)) {
+                entry.size--;
+                entries.decrementAndGet();
+            }
+            return entry.peers.isEmpty() ? null : entry;
+        });
+    }
+
+    void removePeer(String peerKey, Collection<String> fileNames) {
+        for (String fileName : fileNames) {
+            remove(fileName, peerKey);
+        }
+    }
+
+    Set<String> peersWith(String fileName) {
+        Entry entry = files.get(fileName);
+        return entry == null ? Collections.emptySet() : Collections.unmodifiableSet(entry.peers);
+    }
+
+    // the peers sorted after the given key, or all of them for an empty one
+    SortedSet<String> peersAfter(String fileName, String peerKey) {
+        Entry entry = files.get(fileName);
+        if (entry == null) {
+            return Collections.emptySortedSet();
+        }
+        return Collections.unmodifiableSortedSet(peerKey.isEmpty() ? entry.peers : entry.peers.tailSet(peerKey, false));
+    }
+
+    Set<String> fileNames() {
+        return Collections.unmodifiableSet(files.keySet());
+    }
+
+    String rootHash(String fileName) {
+        Entry entry = files.get(fileName);
+        return entry == null ? null : entry.rootHash;
+    }
+
+    int count(String fileName) {
+        Entry entry = files.get(fileName);
+        return entry == null ? 0 : entry.size;
+    }
+
+    int fileCount() {
+        return files.size();
+    }
+
+    long entryCount() {
+        return entries.get();
+    }
+}
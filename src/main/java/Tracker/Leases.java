@@ -0,0 +1,70 @@
+package Tracker;
+
+import java.util.function.Predicate;
+
+// Peers that send keepalives hold a lease that every keepalive pushes back, and a lease that runs
+// out evicts its peer. Renewing and expiring are O(1) on a timing wheel, so a live peer costs the
+// tracker one keepalive per interval and nothing else. Peers without a lease are left to the prober.
+class Leases implements Runnable {
+    private static final long TICK_MS = 250;
+
+    private final long leaseMs;
+    private final Predicate<Tracker.PeerInfo> expire;
+    private final TimerWheel<Tracker.PeerInfo> wheel;
+    private volatile long expiries;
+
+    // expire returns whether the peer was evicted; it may find the lease renewed in the meantime
+    Leases(long leaseMs, Predicate<Tracker.PeerInfo> expire) {
+        this.leaseMs = leaseMs;
+        this.expire = expire;
+        this.wheel = new TimerWheel<>(TICK_MS, (int) (leaseMs / TICK_MS) + 1, System.currentTimeMillis());
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                Thread.sleep(TICK_MS);
+                wheel.advance(System.currentTimeMillis(), peer -> {
+                    // a keepalive may have renewed the lease after the wheel let it go
+                    if (!renewed(peer) && expire.test(peer)) {
+                        expiries++;
+                    }
+                });
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // callers hold the peer's lock
+    void renew(Tracker.PeerInfo peer) {
+        if (peer.lease == null) {
+            peer.lease = wheel.schedule(peer, leaseMs);
+        } else {
+            wheel.reschedule(peer.lease, leaseMs);
+        }
+    }
+
+    void cancel(Tracker.PeerInfo peer) {
+        if (peer.lease != null) {
+            wheel.cancel(peer.lease);
+        }
+    }
+
+    boolean renewed(Tracker.PeerInfo peer) {
+        return peer.lease != null && wheel.pending(peer.lease);
+    }
+
+    long getLeaseMs() {
+        return leaseMs;
+    }
+
+    int size() {
+        return wheel.size();
+    }
+
+    long getExpiries() {
+        return expiries;
+    }
+}
@@ -0,0 +1,138 @@
+package Tracker;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.Iterator;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+
+class PeerChannel implements Runnable {
+    private static final int WORKER_QUEUE_SIZE = 4096;
+
+    interface Handler {
+        Tracker.Reply handle(ByteBuffer data, InetSocketAddress sender);
+    }
+
+    private final int port;
+    private final int bufferSize;
+    private final Handler handler;
+    private final int workerCount = Math.max(2, Runtime.getRuntime().availableProcessors());
+    private final BlockingQueue<ByteBuffer> bufferPool;
+    private final ThreadPoolExecutor workers;
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder unsent = new LongAdder();
+    private volatile DatagramChannel channel;
+
+    PeerChannel(int port, int bufferSize, Handler handler) {
+        this.port = port;
+        this.bufferSize = bufferSize;
+        this.handler = handler;
+        // one buffer per worker and queue slot, plus one for the selector thread to read into
+        int poolSize = workerCount + WORKER_QUEUE_SIZE + 1;
+        this.bufferPool = new ArrayBlockingQueue<>(poolSize);
+        for (int i = 0; i < poolSize; i++) {
+            bufferPool.offer(ByteBuffer.allocateDirect(bufferSize));
+        }
+        this.workers = new ThreadPoolExecutor(workerCount, workerCount, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(WORKER_QUEUE_SIZE), new ThreadPoolExecutor.AbortPolicy());
+    }
+
+    @Override
+    public void run() {
+        try (DatagramChannel channel = DatagramChannel.open();
+                Selector selector = Selector.open()) {
+            channel.configureBlocking(false);
+            channel.bind(new InetSocketAddress(port));
+            channel.register(selector, SelectionKey.OP_READ);
+            this.channel = channel;
+            while (!Thread.currentThread().isInterrupted()) {
+                selector.select();
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (key.isReadable()) {
+                        drain(channel);
+                    }
+                }
+            }
+        } catch (ClosedByInterruptException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            workers.shutdownNow();
+        }
+    }
+
+    private void drain(DatagramChannel channel) throws IOException {
+        while (true) {
+            ByteBuffer buffer = bufferPool.poll();
+            if (buffer == null) {
+                buffer = ByteBuffer.allocate(bufferSize);
+                if (channel.receive(buffer) == null) {
+                    return;
+                }
+                dropped.increment();
+                continue;
+            }
+            SocketAddress sender = channel.receive(buffer);
+            if (sender == null) {
+                release(buffer);
+                return;
+            }
+            buffer.flip();
+            ByteBuffer data = buffer;
+            try {
+                workers.execute(() -> process(data, (InetSocketAddress) sender));
+            } catch (RejectedExecutionException e) {
+                dropped.increment();
+                release(data);
+            }
+        }
+    }
+
+    private void process(ByteBuffer data, InetSocketAddress sender) {
+        try {
+            Tracker.Reply reply = handler.handle(data, sender);
+            if (reply != null) {
+                send(reply);
+            }
+        } catch (RuntimeException e) {
+            System.out.println("Malformed packet from " + sender + ": " + e);
+        } finally {
+            release(data);
+        }
+    }
+
+    void send(Tracker.Reply reply) {
+        DatagramChannel channel = this.channel;
+        if (channel == null) {
+            unsent.increment();
+            return;
+        }
+        try {
+            if (channel.send(reply.data, reply.target) == 0) {
+                unsent.increment();
+            }
+        } catch (IOException e) {
+            unsent.increment();
+        }
+    }
+
+    private void release(ByteBuffer buffer) {
+        buffer.clear();
+        bufferPool.offer(buffer);
+    }
+
+    long getDropped() {
+        return dropped.sum();
+    }
+
+    long getUnsent() {
+        return unsent.sum();
+    }
+}
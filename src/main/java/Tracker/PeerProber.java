@@ -0,0 +1,219 @@
+package Tracker;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ThreadLocalRandom;
+
+class PeerProber implements Runnable {
+    static final String PING = "Are you still alive?";
+    static final String PONG = "yep , I am still alive.";
+    // asks the peer to append "<uploads>/<slots> <bytes per second>" to its pong; older peers echo it back
+    static final String LOAD = "load";
+    private static final long TICK_MS = 100;
+
+    private final Map<String, Tracker.PeerInfo> peers;
+    private final Evictor evict;
+    private final long intervalMs;
+    private final long timeoutMs;
+    private final int attempts;
+    private final Map<Long, Probe> byNonce = new HashMap<>();
+    private final Map<SocketAddress, Probe> byAddress = new HashMap<>();
+    private final ByteBuffer receiveBuffer = ByteBuffer.allocateDirect(256);
+    private TimerWheel<Probe> wheel;
+    private DatagramChannel channel;
+    private volatile long lastSweepMs;
+    private volatile long lastSweepStart;
+    private volatile long timeouts;
+
+    // probedSince is when the first ping went out; whatever the tracker heard from the peer after that
+    // outweighs the silence
+    interface Evictor {
+        void evict(String peerKey, long probedSince);
+    }
+
+    private static final class Probe {
+        final String peerKey;
+        final InetSocketAddress target;
+        final long nonce;
+        final long started = System.currentTimeMillis();
+        int sent;
+        TimerWheel.Timeout<Probe> timeout;
+
+        Probe(String peerKey, InetSocketAddress target, long nonce) {
+            this.peerKey = peerKey;
+            this.target = target;
+            this.nonce = nonce;
+        }
+    }
+
+    PeerProber(Map<String, Tracker.PeerInfo> peers, Evictor evict, long intervalMs, long timeoutMs, int attempts) {
+        this.peers = peers;
+        this.evict = evict;
+        this.intervalMs = intervalMs;
+        this.timeoutMs = timeoutMs;
+        this.attempts = attempts;
+    }
+
+    @Override
+    public void run() {
+        try (DatagramChannel channel = DatagramChannel.open();
+                Selector selector = Selector.open()) {
+            channel.configureBlocking(false);
+            channel.bind(null);
+            channel.register(selector, SelectionKey.OP_READ);
+            long now = System.currentTimeMillis();
+            init(channel, now);
+            long nextSweep = now + intervalMs;
+            while (!Thread.currentThread().isInterrupted()) {
+                selector.select(TICK_MS);
+                if (!selector.selectedKeys().isEmpty()) {
+                    selector.selectedKeys().clear();
+                    readReplies();
+                }
+                now = System.currentTimeMillis();
+                wheel.advance(now, this::onTimeout);
+                if (now >= nextSweep) {
+                    sweep();
+                    nextSweep = now + intervalMs;
+                }
+            }
+        } catch (ClosedByInterruptException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    void init(DatagramChannel channel, long now) {
+        this.channel = channel;
+        wheel = new TimerWheel<>(TICK_MS, 1024, now);
+    }
+
+    void sweep() {
+        lastSweepStart = System.currentTimeMillis();
+        for (Map.Entry<String, Tracker.PeerInfo> entry : peers.entrySet()) {
+            Tracker.PeerInfo peer = entry.getValue();
+            if (peer.hasLease()) {
+                continue;
+            }
+            InetSocketAddress target = new InetSocketAddress(peer.getIp(), peer.getPingPort());
+            if (byAddress.containsKey(target)) {
+                continue;
+            }
+            Probe probe = new Probe(entry.getKey(), target, ThreadLocalRandom.current().nextLong());
+            byNonce.put(probe.nonce, probe);
+            byAddress.put(target, probe);
+            send(probe);
+        }
+    }
+
+    private void send(Probe probe) {
+        probe.sent++;
+        byte[] ping = (PING + " " + Long.toHexString(probe.nonce) + " " + LOAD).getBytes(StandardCharsets.UTF_8);
+        try {
+            channel.send(ByteBuffer.wrap(ping), probe.target);
+        } catch (IOException e) {
+            // counted as a lost ping, the timeout below retries it
+        }
+        if (probe.timeout == null) {
+            probe.timeout = wheel.schedule(probe, timeoutMs);
+        } else {
+            wheel.reschedule(probe.timeout, timeoutMs);
+        }
+    }
+
+    private void readReplies() throws IOException {
+        while (true) {
+            receiveBuffer.clear();
+            SocketAddress sender = channel.receive(receiveBuffer);
+            if (sender == null) {
+                return;
+            }
+            receiveBuffer.flip();
+            String reply = StandardCharsets.UTF_8.decode(receiveBuffer).toString().trim();
+            if (!reply.startsWith(PONG)) {
+                continue;
+            }
+            Probe probe = null;
+            String[] fields = reply.substring(PONG.length()).trim().split(" ");
+            String nonce = fields[0];
+            if (!nonce.isEmpty()) {
+                try {
+                    probe = byNonce.get(Long.parseUnsignedLong(nonce, 16));
+                } catch (NumberFormatException e) {
+                    continue;
+                }
+                if (probe != null && !probe.target.equals(sender)) {
+                    continue;
+                }
+            } else {
+                probe = byAddress.get(sender);
+            }
+            if (probe != null) {
+                complete(probe);
+                Tracker.PeerInfo peer = peers.get(probe.peerKey);
+                if (peer != null) {
+                    peer.updateLastSeen();
+                    if (fields.length >= 3) {
+                        updateLoad(peer, fields[1], fields[2]);
+                    }
+                }
+            }
+        }
+    }
+
+    private static void updateLoad(Tracker.PeerInfo peer, String slots, String rate) {
+        int slash = slots.indexOf('/');
+        if (slash < 0) {
+            return;
+        }
+        try {
+            peer.updateLoad(Integer.parseInt(slots.substring(0, slash)), Integer.parseInt(slots.substring(slash + 1)),
+                    Long.parseLong(rate));
+        } catch (NumberFormatException e) {
+            // not a load report
+        }
+    }
+
+    private void onTimeout(Probe probe) {
+        if (probe.sent < attempts) {
+            send(probe);
+            return;
+        }
+        timeouts++;
+        complete(probe);
+        evict.evict(probe.peerKey, probe.started);
+    }
+
+    private void complete(Probe probe) {
+        wheel.cancel(probe.timeout);
+        byNonce.remove(probe.nonce);
+        byAddress.remove(probe.target);
+        if (byNonce.isEmpty()) {
+            lastSweepMs = System.currentTimeMillis() - lastSweepStart;
+        }
+    }
+
+    // forgets every probe in flight without evicting anyone
+    void cancelAll() {
+        for (Probe probe : new ArrayList<>(byNonce.values())) {
+            complete(probe);
+        }
+    }
+
+    long getLastSweepMs() {
+        return lastSweepMs;
+    }
+
+    long getTimeouts() {
+        return timeouts;
+    }
+}
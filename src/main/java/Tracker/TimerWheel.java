@@ -0,0 +1,129 @@
+package Tracker;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+class TimerWheel<T> {
+    private final long tickMs;
+    private final int mask;
+    private final Timeout<T>[] buckets;
+    private long currentTick;
+    private int size;
+
+    static final class Timeout<T> {
+        final T item;
+        private long rounds;
+        private int bucket = -1;
+        private Timeout<T> prev;
+        private Timeout<T> next;
+
+        private Timeout(T item) {
+            this.item = item;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    TimerWheel(long tickMs, int wheelSize, long nowMs) {
+        int slots = Integer.highestOneBit(Math.max(2, wheelSize - 1)) << 1;
+        this.tickMs = tickMs;
+        this.mask = slots - 1;
+        this.buckets = (Timeout<T>[]) new Timeout<?>[slots];
+        this.currentTick = nowMs / tickMs;
+    }
+
+    synchronized Timeout<T> schedule(T item, long delayMs) {
+        Timeout<T> timeout = new Timeout<>(item);
+        insert(timeout, delayMs);
+        return timeout;
+    }
+
+    synchronized void reschedule(Timeout<T> timeout, long delayMs) {
+        unlink(timeout);
+        insert(timeout, delayMs);
+    }
+
+    synchronized boolean cancel(Timeout<T> timeout) {
+        return unlink(timeout);
+    }
+
+    void advance(long nowMs, Consumer<T> onExpired) {
+        long targetTick = nowMs / tickMs;
+        while (true) {
+            List<T> expired;
+            synchronized (this) {
+                if (currentTick >= targetTick) {
+                    return;
+                }
+                currentTick++;
+                expired = collect((int) (currentTick & mask));
+            }
+            // callbacks run outside the lock so they can schedule or cancel freely; a timeout rescheduled
+            // in the meantime is back in a bucket, so callbacks check pending() before acting on it
+            for (T item : expired) {
+                onExpired.accept(item);
+            }
+        }
+    }
+
+    // false once the timeout fired or was cancelled, true again after a reschedule
+    synchronized boolean pending(Timeout<T> timeout) {
+        return timeout.bucket >= 0;
+    }
+
+    synchronized int size() {
+        return size;
+    }
+
+    private void insert(Timeout<T> timeout, long delayMs) {
+        long ticks = Math.max(1, (delayMs + tickMs - 1) / tickMs);
+        long deadline = currentTick + ticks;
+        timeout.rounds = (ticks - 1) / buckets.length;
+        int bucket = (int) (deadline & mask);
+        timeout.bucket = bucket;
+        timeout.prev = null;
+        timeout.next = buckets[bucket];
+        if (timeout.next != null) {
+            timeout.next.prev = timeout;
+        }
+        buckets[bucket] = timeout;
+        size++;
+    }
+
+    private boolean unlink(Timeout<T> timeout) {
+        if (timeout.bucket < 0) {
+            return false;
+        }
+        if (timeout.prev != null) {
+            timeout.prev.next = timeout.next;
+        } else {
+            buckets[timeout.bucket] = timeout.next;
+        }
+        if (timeout.next != null) {
+            timeout.next.prev = timeout.prev;
+        }
+        timeout.prev = null;
+        timeout.next = null;
+        timeout.bucket = -1;
+        size--;
+        return true;
+    }
+
+    // the expired items go in a list of their own: next belongs to the buckets, and a timeout that is
+    // rescheduled before its callback runs is linked into a live bucket again
+    private List<T> collect(int bucket) {
+        List<T> expired = new ArrayList<>();
+        Timeout<T> t = buckets[bucket];
+        while (t != null) {
+            Timeout<T> next = t.next;
+            if (t.rounds > 0) {
+                t.rounds--;
+            } else {
+                unlink(t);
+                expired.add(t.item);
+            }
+            t = next;
+        }
+        return expired;
+    }
+}
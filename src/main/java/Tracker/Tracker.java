@@ -1,8 +1,13 @@
 package Tracker;
 
+import Common.EventLog;
+import Common.TrackerProtocol;
+
 import java.io.*;
 import java.net.*;
-import java.text.SimpleDateFormat;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
 import java.util.*;
 import java.util.concurrent.*;
 import java.util.concurrent.locks.*;
@@ -10,16 +15,42 @@ import java.util.concurrent.locks.*;
 public class Tracker {
     private static final int UDP_PEER_TO_TRACKER = 6881;
     private static final int TCP_PORT_FOR_OTHER_TRACKERS = 6882;
-    private static final int TCP_PORT_FILE_REQUESTS_FROM_OTHER_TRAKCERS = 6883;
-    private static final int BUFFER_SIZE = 1024;
+    private static final int REBALANCE_INTERVAL_MS = 20000;
+    private static final int BUFFER_SIZE = TrackerProtocol.MAX_DATAGRAM;
     private static final int PEER_CHECK_INTERVAL_MS = 20000;
+    private static final int PROBE_TIMEOUT_MS = 2000;
+    private static final int PROBE_ATTEMPTS = 3;
+    private static final long LEASE_MS = Long.getLong("tracker.lease.ms", 30000);
     private Map<String, PeerInfo> peers = new ConcurrentHashMap<>();
-    private List<String> otherTrackers;
-    private ReadWriteLock peerLock = new ReentrantReadWriteLock();
-    private Lock trackerLock = new ReentrantLock();
-    private SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
-    private List<String> logs = new CopyOnWriteArrayList<>();
+    private final FileIndex fileIndex = new FileIndex();
+    private static final int LOCK_STRIPES = 64;
+    private final Lock[] peerLocks = new Lock[LOCK_STRIPES];
+    private final int udpPort;
+    private final int clusterPort;
+    private final Cluster cluster;
+    private final ScheduledExecutorService rebalancer = Executors.newSingleThreadScheduledExecutor();
+    private final TrackerStore store;
+    private static final int EVENT_LOG_CAPACITY = 10000;
+    private final EventLog events = EventLog.fromSystemProperty(EVENT_LOG_CAPACITY, "tracker.eventlog.file");
     ExecutorService executor;
+    private volatile PeerChannel frontEnd;
+    private volatile PeerProber prober;
+    private final TrackerMetrics metrics = new TrackerMetrics();
+    private final Leases leases = new Leases(LEASE_MS, this::expireLease);
+
+    static final class Reply {
+        final ByteBuffer data;
+        final InetSocketAddress target;
+
+        Reply(byte[] data, InetSocketAddress target) {
+            this(ByteBuffer.wrap(data), target);
+        }
+
+        Reply(ByteBuffer data, InetSocketAddress target) {
+            this.data = data;
+            this.target = target;
+        }
+    }
 
     public class PeerInfo {
         private InetAddress ip;
@@ -27,7 +58,13 @@ public class Tracker {
         private int serverPort;
         private int pingPort;
         private volatile long lastSeen;
-        private HashMap<String, Integer> sharedFiles;
+        private final Map<String, Integer> sharedFiles;
+        // reported with each pong; -1 until the peer has said anything
+        private volatile int uploads = -1;
+        private volatile int uploadSlots;
+        private volatile long uploadRate;
+        // set once the peer sends keepalives; the prober leaves leased peers alone
+        volatile TimerWheel.Timeout<PeerInfo> lease;
 
         public PeerInfo(InetAddress ip, int listenport, int serverPort, int pingPort) {
             this.ip = ip;
@@ -35,7 +72,7 @@ public class Tracker {
             this.serverPort = serverPort;
             this.pingPort = pingPort;
             this.lastSeen = System.currentTimeMillis();
-            this.sharedFiles = new HashMap<>();
+            this.sharedFiles = new ConcurrentHashMap<>();
         }
 
         public void updateLastSeen() {
@@ -62,33 +99,194 @@ public class Tracker {
             return lastSeen;
         }
 
-        public HashMap<String, Integer> getSharedFiles() {
+        public Map<String, Integer> getSharedFiles() {
             return sharedFiles;
         }
+
+        boolean hasLease() {
+            return lease != null;
+        }
+
+        String key() {
+            return ip.toString() + ":" + serverPort;
+        }
+
+        void updateLoad(int uploads, int uploadSlots, long uploadRate) {
+            this.uploadSlots = uploadSlots;
+            this.uploadRate = uploadRate;
+            this.uploads = uploads;
+        }
+
+        // per mille of the upload slots in use; peers that don't report rank in the middle
+        int getLoad() {
+            int slots = uploadSlots;
+            return uploads < 0 ? 500 : (int) Math.min(1000L, uploads * 1000L / Math.max(1, slots));
+        }
+
+        long getUploadRate() {
+            return uploadRate;
+        }
+
+        // lower ranks first: least loaded, then of two equally busy peers the one uploading faster.
+        // Taken once per lookup, since pongs keep changing the load while a list is being sorted.
+        long rank() {
+            return ((long) getLoad() << 40) + (MAX_RANKED_RATE - Math.min(uploadRate, MAX_RANKED_RATE));
+        }
+    }
+
+    private static final long MAX_RANKED_RATE = (1L << 40) - 1;
+
+    private static final class RankedPeer {
+        final long rank;
+        final PeerInfo peer;
+        final int port;
+
+        RankedPeer(PeerInfo peer, int port) {
+            this.rank = peer.rank();
+            this.peer = peer;
+            this.port = port;
+        }
+    }
+
+    // the changes in one keepalive that belong to files another tracker owns
+    private static final class Deltas {
+        final List<PendingShare> adds = new ArrayList<>();
+        final List<String> removes = new ArrayList<>();
+    }
+
+    private static final class PendingShare {
+        final int index;
+        final String fileName;
+        final String rootHash;
+
+        PendingShare(int index, String fileName, String rootHash) {
+            this.index = index;
+            this.fileName = fileName;
+            this.rootHash = rootHash;
+        }
     }
 
     public Tracker() {
-        this.otherTrackers = new CopyOnWriteArrayList<>();
+        this(UDP_PEER_TO_TRACKER, TCP_PORT_FOR_OTHER_TRACKERS, Collections.emptyList());
     }
 
+    // seeds are "host:clusterPort" of trackers already in the cluster
+    public Tracker(int udpPort, int clusterPort, List<String> seeds) {
+        this.udpPort = udpPort;
+        this.clusterPort = clusterPort;
+        this.cluster = new Cluster(advertisedHost() + ":" + clusterPort, seeds,
+                () -> rebalancer.execute(this::rebalance), this::rebalance);
+        this.store = new TrackerStore(Paths.get(System.getProperty("tracker.data.dir", "tracker-data"))
+                .resolve(String.valueOf(udpPort)), Boolean.parseBoolean(System.getProperty("tracker.wal.sync", "true")),
+                peers, fileIndex);
+        for (int i = 0; i < LOCK_STRIPES; i++) {
+            peerLocks[i] = new ReentrantLock();
+        }
+    }
+
+    // share, ack and eviction of one peer are serialized on its stripe; lookups take no lock at all
+    private Lock peerLock(String peerKey) {
+        return peerLocks[(peerKey.hashCode() & 0x7fffffff) % LOCK_STRIPES];
+    }
+
+    // usage: Tracker [udp_port [cluster_port [seed_host:cluster_port ...]]]
     public static void main(String[] args) {
-        Tracker tracker = new Tracker();
+        int udpPort = UDP_PEER_TO_TRACKER;
+        int clusterPort = TCP_PORT_FOR_OTHER_TRACKERS;
+        try {
+            if (args.length >= 1) {
+                udpPort = Integer.parseInt(args[0]);
+            }
+            if (args.length >= 2) {
+                clusterPort = Integer.parseInt(args[1]);
+            }
+        } catch (NumberFormatException e) {
+            System.out.println("Invalid port number provided, using defaults: " + udpPort + " " + clusterPort);
+        }
+        List<String> seeds = new ArrayList<>();
+        for (int i = 2; i < args.length; i++) {
+            seeds.add(args[i]);
+        }
+        Tracker tracker = new Tracker(udpPort, clusterPort, seeds);
         tracker.start();
     }
 
+    private static String advertisedHost() {
+        String host = System.getProperty("tracker.host");
+        if (host != null && !host.isEmpty()) {
+            return host;
+        }
+        try {
+            return InetAddress.getLocalHost().getHostAddress();
+        } catch (UnknownHostException e) {
+            return "127.0.0.1";
+        }
+    }
+
     private void start() {
         System.out.println("tracker stated!");
-        executor = Executors.newFixedThreadPool(3);
-        // executor.execute(this::listenForTrackers);
-        executor.execute(this::listenForPeers);
+        recover();
+        executor = Executors.newFixedThreadPool(6);
+        executor.execute(this::listenForTrackers);
+        frontEnd = new PeerChannel(udpPort, BUFFER_SIZE, this::handlePeerMessage);
+        executor.execute(frontEnd);
         executor.execute(this::checkPeerHealth);
+        executor.execute(leases);
+        executor.execute(cluster);
         executor.execute(this::CLI);
+        startMetrics();
+        rebalancer.scheduleWithFixedDelay(this::rebalance, REBALANCE_INTERVAL_MS, REBALANCE_INTERVAL_MS,
+                TimeUnit.MILLISECONDS);
+    }
 
+    private void startMetrics() {
+        metrics.gauge("tracker_peers", "Peers currently registered.", () -> peers.size());
+        metrics.gauge("tracker_files", "Distinct files in the index.", () -> fileIndex.fileCount());
+        metrics.gauge("tracker_registrations", "Peer and file pairs in the index.", () -> fileIndex.entryCount());
+        metrics.gauge("tracker_health_sweep_milliseconds", "Duration of the last peer health sweep.",
+                () -> prober == null ? 0 : prober.getLastSweepMs());
+        metrics.counter("tracker_probe_timeouts_total", "Health probes that got no answer.",
+                () -> prober == null ? 0 : prober.getTimeouts());
+        metrics.gauge("tracker_leases", "Peers holding a keepalive lease.", leases::size);
+        metrics.counter("tracker_lease_expiries_total", "Peers evicted because their lease ran out.",
+                leases::getExpiries);
+        metrics.counter("tracker_dropped_packets_total", "Requests dropped because every handler was busy.",
+                () -> frontEnd == null ? 0 : frontEnd.getDropped());
+        metrics.counter("tracker_unsent_replies_total", "Replies that couldn't be sent.",
+                () -> frontEnd == null ? 0 : frontEnd.getUnsent());
+        metrics.register(udpPort);
+        int port = Integer.getInteger("tracker.metrics.port", udpPort + 1000);
+        if (port > 0) {
+            metrics.serve(port);
+        }
     }
 
-    private void log(String message) {
-        String timestamp = dateFormat.format(new Date());
-        logs.add("[" + timestamp + "] " + message);
+    void recover() {
+        try {
+            store.recover(new TrackerStore.Target() {
+                @Override
+                public void register(InetAddress address, int listenPort, int serverPort, int pingPort,
+                        String fileName, int filePort, String rootHash) {
+                    registerFile(address, listenPort, serverPort, pingPort, fileName, filePort, rootHash, false);
+                }
+
+                @Override
+                public void release(String peerKey, String fileName) {
+                    releaseFile(peerKey, fileName, false);
+                }
+
+                @Override
+                public void evict(String peerKey) {
+                    removePeer(peerKey, false);
+                }
+            });
+        } catch (IOException e) {
+            System.out.println("Couldn't recover tracker state, continuing without persistence: " + e.getMessage());
+        }
+    }
+
+    private void log(EventLog.Type type, InetAddress address, String fileName, String detail) {
+        events.record(type, address == null ? null : address.getHostAddress(), fileName, detail);
     }
 
     private void CLI() {
@@ -101,24 +299,21 @@ public class Tracker {
                 System.out.print("> ");
                 String command = scanner.nextLine();
                 if (command.equals("all-logs")) {
-                    for (String x : logs)
+                    for (EventLog.Event x : events.all())
                         System.out.println(x);
 
                 } else if (command.startsWith("log requests ")) {
                     String[] info = command.split(" ");
-                    if (info.length < 2) {
+                    if (info.length < 3) {
                         System.out.println("Error in command format!");
                         continue;
                     }
-                    String keyword = info[1];
-                    for (String log : logs) {
-                        if (log.contains(keyword)) {
-                            System.out.println(log);
-                            counter++;
-                        }
-                        if (counter == 0) {
-                            System.out.println("No log with this IP");
-                        }
+                    for (EventLog.Event log : events.byIp(info[2])) {
+                        System.out.println(log);
+                        counter++;
+                    }
+                    if (counter == 0) {
+                        System.out.println("No log with this IP");
                     }
                 } else if (command.startsWith("file-logs ")) {
                     String[] info = command.split(" ");
@@ -126,17 +321,18 @@ public class Tracker {
                         System.out.println("Error in command format!");
                         continue;
                     }
-                    String keyword = info[1];
-                    for (String log : logs) {
-                        if (log.contains(keyword)) {
-                            System.out.println(log);
-                            counter++;
-                        }
+                    for (EventLog.Event log : events.byFile(info[1])) {
+                        System.out.println(log);
+                        counter++;
                     }
                     if (counter == 0) {
                         System.out.println("No log with this FileName!");
                     }
 
+                } else if (command.equals("members")) {
+                    for (String member : cluster.ring().getMembers()) {
+                        System.out.println(member.equals(cluster.self()) ? member + " (this tracker)" : member);
+                    }
                 } else {
 
                     System.out.println("Invalid command!");
@@ -146,6 +342,8 @@ public class Tracker {
 
         } catch (Exception e) {
             System.out.println("Interrupt detected , Ending Tracker process...");
+            cluster.leave();
+            store.snapshot();
             executor.shutdownNow();
             System.exit(0);
 
@@ -153,236 +351,705 @@ public class Tracker {
 
     }
 
-    /*
-     * private void listenForTrackers() {
-     * try (ServerSocket serverSocket = new
-     * ServerSocket(TCP_PORT_FOR_OTHER_TRACKERS)) {
-     * while (true) {
-     * Socket socket = serverSocket.accept();
-     * new Thread(() -> handleTrackerConnection(socket)).start();
-     * }
-     * } catch (IOException e) {
-     * e.printStackTrace();
-     * }
-     * }
-     */
-
-    /*
-     * private void handleTrackerConnection(Socket socket) {
-     * try (BufferedReader reader = new BufferedReader(new
-     * InputStreamReader(socket.getInputStream()));
-     * PrintWriter writer = new PrintWriter(socket.getOutputStream(), true)) {
-     * String trackerAddress = reader.readLine();
-     * if (trackerAddress != null) {
-     * trackerLock.lock();
-     * try {
-     * if (!otherTrackers.contains(trackerAddress)) {
-     * otherTrackers.add(trackerAddress);
-     * log("Tracker added: " + trackerAddress);
-     * writer.println("Tracker added: " + trackerAddress);
-     * }
-     * 
-     * } finally {
-     * trackerLock.unlock();
-     * }
-     * }
-     * } catch (IOException e) {
-     * e.printStackTrace();
-     * }
-     * }
-     */
-
-    private void listenForPeers() {
-        try (DatagramSocket socket = new DatagramSocket(UDP_PEER_TO_TRACKER)) {
-            byte[] buffer = new byte[BUFFER_SIZE];
-
+    private void listenForTrackers() {
+        ExecutorService connections = Executors.newCachedThreadPool();
+        try (ServerSocket serverSocket = new ServerSocket(clusterPort)) {
             while (true) {
-                DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
-                socket.receive(packet);
-                new Thread(() -> handlePeerMessage(packet)).start();
+                Socket socket = serverSocket.accept();
+                connections.execute(() -> handleTrackerConnection(socket));
             }
         } catch (IOException e) {
             e.printStackTrace();
+        } finally {
+            connections.shutdownNow();
         }
     }
 
-    private void handlePeerMessage(DatagramPacket packet) {
-        try {
-            String message = new String(packet.getData(), 0, packet.getLength()).trim();
-            InetAddress address = packet.getAddress();
-            int port = packet.getPort();
-
-            int tempPort;
-            String response;
-            log("Peer packet : ip :" + address + "message: " + message);
-            peerLock.writeLock().lock();
-            try {
-                if (message.startsWith("share") && message.length() > 6) {
-                    String fileName = message.split(" ")[1];
-                    int peerServerPort = Integer.parseInt(message.split(" ")[4]);
-                    int peerPingPort = Integer.parseInt(message.split(" ")[5]);
-                    tempPort = Integer.parseInt(message.split(" ")[3]);
-                    peers.computeIfAbsent(address.toString() + ":" + peerServerPort,
-                            k -> new PeerInfo(address, port, peerServerPort, peerPingPort)).getSharedFiles()
-                            .put(fileName, tempPort);
-                    response = "File shared successfully: " + fileName;
-
-                } else if (message.startsWith("get") && message.length() > 4) {
-                    String fileName = message.split(" ")[1];
-                    response = getPeersWithFile(fileName);
-                    tempPort = port;
-                } else if (message.startsWith("ack") && message.length() > 4) {
-                    String[] info = message.split(" ");
-                    String senderKey = address.toString() + ":" + info[5];
-                    tempPort = 8080;
-                    if (info[3].equals("success")) {
-
-                        peers.computeIfAbsent(senderKey,
-                                x -> new PeerInfo(address, port, Integer.parseInt(info[5]), Integer.parseInt(info[4])));
-                        peers.get(senderKey).sharedFiles.put(info[1], Integer.parseInt(info[2]));
-                        response = senderKey + " successfully donwloaded " + info[1];
-                        log(senderKey + " successfully donwloaded " + info[1]);
+    // connections from other trackers are persistent; requests are served one after another until they close
+    private void handleTrackerConnection(Socket socket) {
+        try (Socket s = socket;
+                DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()))) {
+            s.setTcpNoDelay(true);
+            int op;
+            while ((op = in.read()) != -1) {
+                if (op == Cluster.OP_JOIN || op == Cluster.OP_PING) {
+                    cluster.memberSeen(in.readUTF());
+                    cluster.writeMembers(out);
+                } else if (op == Cluster.OP_FORWARD) {
+                    byte[] ip = new byte[in.readUnsignedByte()];
+                    in.readFully(ip);
+                    InetSocketAddress sender = new InetSocketAddress(InetAddress.getByAddress(ip),
+                            in.readUnsignedShort());
+                    byte[] payload = new byte[in.readInt()];
+                    in.readFully(payload);
+                    Reply reply = handlePeerMessage(ByteBuffer.wrap(payload), sender, true);
+                    if (reply == null) {
+                        out.writeInt(-1);
                     } else {
-                        response = senderKey + " couldn't download " + info[1];
-                        log(senderKey + " couldn't download " + info[1]);
+                        byte[] data = new byte[reply.data.remaining()];
+                        reply.data.get(data);
+                        out.writeInt(reply.target.getPort());
+                        out.writeInt(data.length);
+                        out.write(data);
                     }
+                } else if (op == Cluster.OP_LEAVE) {
+                    cluster.removeMember(in.readUTF());
+                    out.writeBoolean(true);
+                } else if (op == Cluster.OP_HANDOFF) {
+                    String fileName = in.readUTF();
+                    String rootHash = in.readBoolean() ? in.readUTF() : null;
+                    int count = in.readInt();
+                    for (int i = 0; i < count; i++) {
+                        byte[] ip = new byte[in.readUnsignedByte()];
+                        in.readFully(ip);
+                        int listenPort = in.readUnsignedShort();
+                        int serverPort = in.readUnsignedShort();
+                        int pingPort = in.readUnsignedShort();
+                        int filePort = in.readUnsignedShort();
+                        registerFile(InetAddress.getByAddress(ip), listenPort, serverPort, pingPort, fileName,
+                                filePort, rootHash);
+                    }
+                    store.sync();
+                    log(EventLog.Type.INFO, null, fileName, "took over " + count + " peer(s)");
+                    out.writeBoolean(true);
+                } else {
+                    throw new IOException("Unknown cluster op " + op);
+                }
+                out.flush();
+            }
+        } catch (IOException e) {
+            System.out.println("Tracker connection closed: " + e.getMessage());
+        }
+    }
+
+    // returns null when the owner couldn't be reached, in which case the request is handled here
+    private Reply forward(String owner, byte[] payload, InetSocketAddress sender) {
+        metrics.forwarded();
+        try {
+            return cluster.call(owner, Cluster.OP_FORWARD, out -> {
+                byte[] ip = sender.getAddress().getAddress();
+                out.writeByte(ip.length);
+                out.write(ip);
+                out.writeShort(sender.getPort());
+                out.writeInt(payload.length);
+                out.write(payload);
+            }, in -> {
+                int targetPort = in.readInt();
+                if (targetPort < 0) {
+                    return null;
+                }
+                byte[] data = new byte[in.readInt()];
+                in.readFully(data);
+                return new Reply(data, new InetSocketAddress(sender.getAddress(), targetPort));
+            });
+        } catch (IOException e) {
+            log(EventLog.Type.INFO, sender.getAddress(), null, "couldn't forward to " + owner + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    private Reply forward(String owner, ByteBuffer packet, int start, InetSocketAddress sender) {
+        byte[] payload = new byte[packet.limit() - start];
+        packet.get(start, payload);
+        return forward(owner, payload, sender);
+    }
+
+    private Reply forwardText(String message, String[] parts, InetAddress address, int port) {
+        if (parts.length < 2 || !(parts[0].equals("share") || parts[0].equals("get") || parts[0].equals("ack"))) {
+            return null;
+        }
+        String owner = cluster.remoteOwner(parts[1]);
+        if (owner == null) {
+            return null;
+        }
+        return forward(owner, message.getBytes(StandardCharsets.UTF_8), new InetSocketAddress(address, port));
+    }
+
+    Reply handlePeerMessage(ByteBuffer data, InetSocketAddress sender) {
+        return handlePeerMessage(data, sender, false);
+    }
+
+    // forwarded requests are always handled here, so trackers with different views of the ring can't bounce them
+    private Reply handlePeerMessage(ByteBuffer data, InetSocketAddress sender, boolean forwarded) {
+        TrackerMetrics.Command command = TrackerMetrics.classify(data);
+        long started = System.nanoTime();
+        try {
+            if (TrackerProtocol.isBinary(data)) {
+                return handleBinaryMessage(data, sender, forwarded);
+            }
+            String message = StandardCharsets.UTF_8.decode(data).toString().trim();
+            return handlePeerMessage(message, sender.getAddress(), sender.getPort(), forwarded);
+        } finally {
+            metrics.record(command, System.nanoTime() - started);
+        }
+    }
+
+    Reply handlePeerMessage(String message, InetAddress address, int port) {
+        return handlePeerMessage(message, address, port, false);
+    }
 
+    private Reply handlePeerMessage(String message, InetAddress address, int port, boolean forwarded) {
+        // split once; every branch below indexes into the same parts
+        String[] parts = message.split(" ");
+        if (!forwarded) {
+            Reply reply = forwardText(message, parts, address, port);
+            if (reply != null) {
+                return reply;
+            }
+        }
+        int tempPort;
+        String response;
+        if (message.startsWith("share") && message.length() > 6) {
+            String fileName = parts[1];
+            int peerServerPort = Integer.parseInt(parts[4]);
+            int peerPingPort = Integer.parseInt(parts[5]);
+            tempPort = Integer.parseInt(parts[3]);
+            String rootHash = parts.length > 6 ? parts[6] : null;
+            if (rootHash != null && !TrackerProtocol.isRootHash(rootHash)) {
+                response = "Invalid root hash for " + fileName;
+            } else if (registerFile(address, port, peerServerPort, peerPingPort, fileName, peerServerPort,
+                    rootHash)) {
+                response = "File shared successfully: " + fileName;
+            } else {
+                response = "File already shared with different content: " + fileName;
+            }
+            log(EventLog.Type.SHARE, address, fileName, response);
+
+        } else if (message.startsWith("get") && message.length() > 4) {
+            String fileName = parts[1];
+            response = getPeersWithFile(fileName);
+            tempPort = port;
+            log(EventLog.Type.GET, address, fileName, response);
+        } else if (message.startsWith("ack") && message.length() > 4) {
+            String senderKey = address.toString() + ":" + parts[5];
+            tempPort = 8080;
+            String rootHash = parts.length > 6 ? parts[6] : null;
+            if (rootHash != null && !TrackerProtocol.isRootHash(rootHash)) {
+                response = senderKey + " sent an invalid root hash for " + parts[1];
+            } else if (parts[3].equals("success")) {
+                if (registerFile(address, port, Integer.parseInt(parts[5]), Integer.parseInt(parts[4]), parts[1],
+                        Integer.parseInt(parts[2]), rootHash)) {
+                    response = senderKey + " successfully donwloaded " + parts[1];
                 } else {
-                    response = "Invalid command";
-                    tempPort = port;
+                    response = senderKey + " downloaded " + parts[1] + " with different content";
                 }
-            } finally {
-                peerLock.writeLock().unlock();
+            } else {
+                response = senderKey + " couldn't download " + parts[1];
             }
-            byte[] responseData = response.getBytes();
-            DatagramPacket responsePacket = new DatagramPacket(responseData, responseData.length, address, tempPort);
-            try (DatagramSocket socket = new DatagramSocket()) {
-                socket.send(responsePacket);
+            log(EventLog.Type.ACK, address, parts[1], response);
+
+        } else {
+            response = "Invalid command";
+            tempPort = port;
+            log(EventLog.Type.INFO, address, null, "invalid command: " + message);
+        }
+        store.sync();
+        byte[] reply = response.getBytes();
+        if (reply.length > BUFFER_SIZE) {
+            metrics.truncated();
+        }
+        return new Reply(reply, new InetSocketAddress(address, tempPort));
+    }
+
+    private final ThreadLocal<ByteBuffer> replyBuffers = ThreadLocal
+            .withInitial(() -> ByteBuffer.allocateDirect(TrackerProtocol.MAX_DATAGRAM));
+
+    Reply handleBinaryMessage(ByteBuffer in, InetSocketAddress sender, boolean forwarded) {
+        InetAddress address = sender.getAddress();
+        ByteBuffer out = replyBuffers.get();
+        out.clear();
+        int start = in.position();
+        in.get();
+        byte version = in.get();
+        byte op = in.get();
+        int requestId = in.getInt();
+        if (version != TrackerProtocol.VERSION) {
+            TrackerProtocol.putHeader(out, TrackerProtocol.OP_ERROR, requestId);
+            out.put(TrackerProtocol.VERSION);
+            TrackerProtocol.putString(out, "Unsupported protocol version " + version);
+        } else if (op == TrackerProtocol.OP_SHARE) {
+            int peerServerPort = TrackerProtocol.getPort(in);
+            int peerPingPort = TrackerProtocol.getPort(in);
+            int count = TrackerProtocol.getPort(in);
+            TrackerProtocol.putHeader(out, TrackerProtocol.OP_SHARE_REPLY, requestId);
+            out.putShort((short) count);
+            int statusAt = out.position();
+            Map<String, List<PendingShare>> remote = null;
+            for (int i = 0; i < count; i++) {
+                String fileName = TrackerProtocol.getString(in);
+                String rootHash = TrackerProtocol.getHash(in);
+                String owner = forwarded ? null : cluster.remoteOwner(fileName);
+                if (owner != null) {
+                    if (remote == null) {
+                        remote = new HashMap<>();
+                    }
+                    remote.computeIfAbsent(owner, k -> new ArrayList<>()).add(new PendingShare(i, fileName, rootHash));
+                    out.put(TrackerProtocol.STATUS_CONFLICT);
+                    continue;
+                }
+                boolean shared = registerFile(address, sender.getPort(), peerServerPort, peerPingPort, fileName,
+                        peerServerPort, rootHash);
+                out.put(shared ? TrackerProtocol.STATUS_OK : TrackerProtocol.STATUS_CONFLICT);
+                log(EventLog.Type.SHARE, address, fileName, shared ? "shared" : "different content");
             }
-        } catch (IOException e) {
-            e.printStackTrace();
+            if (remote != null) {
+                for (Map.Entry<String, List<PendingShare>> batch : remote.entrySet()) {
+                    forwardShares(batch.getKey(), batch.getValue(), sender, peerServerPort, peerPingPort, out,
+                            statusAt);
+                }
+            }
+        } else if (op == TrackerProtocol.OP_GET) {
+            String fileName = TrackerProtocol.getString(in);
+            String cursor = TrackerProtocol.getString(in);
+            String owner = forwarded ? null : cluster.remoteOwner(fileName);
+            if (owner != null) {
+                Reply reply = forward(owner, in, start, sender);
+                if (reply != null) {
+                    return reply;
+                }
+            }
+            writePeers(out, fileName, cursor, requestId);
+            log(EventLog.Type.GET, address, fileName, cursor.isEmpty() ? "first page" : "page after " + cursor);
+        } else if (op == TrackerProtocol.OP_ACK) {
+            boolean success = in.get() != 0;
+            int peerServerPort = TrackerProtocol.getPort(in);
+            int peerPingPort = TrackerProtocol.getPort(in);
+            String fileName = TrackerProtocol.getString(in);
+            String rootHash = TrackerProtocol.getHash(in);
+            String owner = forwarded ? null : cluster.remoteOwner(fileName);
+            if (owner != null) {
+                Reply reply = forward(owner, in, start, sender);
+                if (reply != null) {
+                    return reply;
+                }
+            }
+            boolean registered = success && registerFile(address, sender.getPort(), peerServerPort, peerPingPort,
+                    fileName, peerServerPort, rootHash);
+            TrackerProtocol.putHeader(out, TrackerProtocol.OP_ACK_REPLY, requestId);
+            out.put(registered || !success ? TrackerProtocol.STATUS_OK : TrackerProtocol.STATUS_CONFLICT);
+            log(EventLog.Type.ACK, address, fileName, success ? "downloaded" : "couldn't download");
+        } else if (op == TrackerProtocol.OP_KEEPALIVE) {
+            handleKeepalive(in, sender, forwarded, out, requestId);
+        } else {
+            TrackerProtocol.putHeader(out, TrackerProtocol.OP_ERROR, requestId);
+            out.put(TrackerProtocol.VERSION);
+            TrackerProtocol.putString(out, "Unknown op " + op);
         }
+        store.sync();
+        out.flip();
+        return new Reply(out, sender);
     }
 
-    private String getPeersWithFile(String fileName) {
-        peerLock.readLock().lock();
+    // renews the sender's lease and applies the files it started or stopped sharing since its last keepalive.
+    // Changes to files another tracker owns are passed on to it, but leases stay with the tracker the peer
+    // talks to: the owner keeps probing peers it only knows through forwarded requests.
+    private void handleKeepalive(ByteBuffer in, InetSocketAddress sender, boolean forwarded, ByteBuffer out,
+            int requestId) {
+        InetAddress address = sender.getAddress();
+        int peerServerPort = TrackerProtocol.getPort(in);
+        int peerPingPort = TrackerProtocol.getPort(in);
+        int uploads = TrackerProtocol.getPort(in);
+        int uploadSlots = TrackerProtocol.getPort(in);
+        long uploadRate = in.getLong();
+        String peerKey = address.toString() + ":" + peerServerPort;
+        Map<String, Deltas> remote = null;
+        int adds = TrackerProtocol.getPort(in);
+        for (int i = 0; i < adds; i++) {
+            String fileName = TrackerProtocol.getString(in);
+            String rootHash = TrackerProtocol.getHash(in);
+            String owner = forwarded ? null : cluster.remoteOwner(fileName);
+            if (owner != null) {
+                if (remote == null) {
+                    remote = new HashMap<>();
+                }
+                remote.computeIfAbsent(owner, k -> new Deltas()).adds.add(new PendingShare(i, fileName, rootHash));
+                continue;
+            }
+            boolean shared = registerFile(address, sender.getPort(), peerServerPort, peerPingPort, fileName,
+                    peerServerPort, rootHash);
+            log(EventLog.Type.SHARE, address, fileName, shared ? "shared with keepalive" : "different content");
+        }
+        int removes = TrackerProtocol.getPort(in);
+        for (int i = 0; i < removes; i++) {
+            String fileName = TrackerProtocol.getString(in);
+            String owner = forwarded ? null : cluster.remoteOwner(fileName);
+            if (owner != null) {
+                if (remote == null) {
+                    remote = new HashMap<>();
+                }
+                remote.computeIfAbsent(owner, k -> new Deltas()).removes.add(fileName);
+                continue;
+            }
+            releaseFile(peerKey, fileName, true);
+            log(EventLog.Type.INFO, address, fileName, "no longer shared");
+        }
+        if (remote != null) {
+            for (Map.Entry<String, Deltas> deltas : remote.entrySet()) {
+                forwardDeltas(deltas.getKey(), deltas.getValue(), sender, peerServerPort, peerPingPort, uploads,
+                        uploadSlots, uploadRate);
+            }
+        }
+        byte status = TrackerProtocol.STATUS_OK;
+        long granted = 0;
+        Lock lock = peerLock(peerKey);
+        lock.lock();
         try {
-            List<String> peerList = new ArrayList<>();
-            for (PeerInfo peer : peers.values()) {
-                if (peer.getSharedFiles().keySet().contains(fileName)) {
-                    peerList.add(peer.getIp().getHostAddress() + ":" + peer.getSharedFiles().get(fileName));
+            PeerInfo peer = peers.get(peerKey);
+            if (peer == null) {
+                // a peer that just announced everything to other trackers isn't asked to do it again
+                status = adds == 0 ? TrackerProtocol.STATUS_UNKNOWN : TrackerProtocol.STATUS_OK;
+            } else {
+                peer.updateLastSeen();
+                peer.updateLoad(uploads, uploadSlots, uploadRate);
+                if (!forwarded) {
+                    leases.renew(peer);
+                    granted = leases.getLeaseMs();
                 }
             }
-            if (!peerList.isEmpty()) {
-                System.out.println(String.join(", ", peerList));
-                return String.join(", ", peerList);
+        } finally {
+            lock.unlock();
+        }
+        TrackerProtocol.putHeader(out, TrackerProtocol.OP_KEEPALIVE_REPLY, requestId);
+        out.put(status);
+        out.putInt((int) granted);
+    }
+
+    private void forwardDeltas(String owner, Deltas deltas, InetSocketAddress sender, int peerServerPort,
+            int peerPingPort, int uploads, int uploadSlots, long uploadRate) {
+        ByteBuffer packet = ByteBuffer.allocate(TrackerProtocol.MAX_DATAGRAM);
+        TrackerProtocol.putHeader(packet, TrackerProtocol.OP_KEEPALIVE, 0);
+        packet.putShort((short) peerServerPort).putShort((short) peerPingPort).putShort((short) uploads)
+                .putShort((short) uploadSlots).putLong(uploadRate);
+        packet.putShort((short) deltas.adds.size());
+        for (PendingShare share : deltas.adds) {
+            TrackerProtocol.putString(packet, share.fileName);
+            TrackerProtocol.putHash(packet, share.rootHash);
+        }
+        packet.putShort((short) deltas.removes.size());
+        for (String fileName : deltas.removes) {
+            TrackerProtocol.putString(packet, fileName);
+        }
+        if (forward(owner, Arrays.copyOf(packet.array(), packet.position()), sender) != null) {
+            return;
+        }
+        InetAddress address = sender.getAddress();
+        for (PendingShare share : deltas.adds) {
+            registerFile(address, sender.getPort(), peerServerPort, peerPingPort, share.fileName, peerServerPort,
+                    share.rootHash);
+        }
+        for (String fileName : deltas.removes) {
+            releaseFile(address.toString() + ":" + peerServerPort, fileName, true);
+        }
+    }
+
+    // re-packs the files another tracker owns into one share for it and copies its answers into our reply
+    private void forwardShares(String owner, List<PendingShare> shares, InetSocketAddress sender, int peerServerPort,
+            int peerPingPort, ByteBuffer out, int statusAt) {
+        ByteBuffer packet = ByteBuffer.allocate(TrackerProtocol.MAX_DATAGRAM);
+        TrackerProtocol.putHeader(packet, TrackerProtocol.OP_SHARE, 0);
+        packet.putShort((short) peerServerPort).putShort((short) peerPingPort).putShort((short) shares.size());
+        for (PendingShare share : shares) {
+            TrackerProtocol.putString(packet, share.fileName);
+            TrackerProtocol.putHash(packet, share.rootHash);
+        }
+        Reply reply = forward(owner, Arrays.copyOf(packet.array(), packet.position()), sender);
+        ByteBuffer statuses = reply == null ? null : reply.data;
+        if (statuses != null && statuses.remaining() >= TrackerProtocol.HEADER_SIZE + 2 + shares.size()
+                && statuses.get(statuses.position() + 2) == TrackerProtocol.OP_SHARE_REPLY) {
+            statuses.position(statuses.position() + TrackerProtocol.HEADER_SIZE + 2);
+            for (PendingShare share : shares) {
+                out.put(statusAt + share.index, statuses.get());
             }
+            return;
+        }
+        InetAddress address = sender.getAddress();
+        for (PendingShare share : shares) {
+            boolean shared = registerFile(address, sender.getPort(), peerServerPort, peerPingPort, share.fileName,
+                    peerServerPort, share.rootHash);
+            out.put(statusAt + share.index, shared ? TrackerProtocol.STATUS_OK : TrackerProtocol.STATUS_CONFLICT);
+            log(EventLog.Type.SHARE, address, share.fileName, shared ? "shared" : "different content");
+        }
+    }
+
+    // fills one datagram with peers sorted after the cursor, the last peer key of the page before; the next
+    // cursor is that of this page, or empty when it was the last. Keys are stable, so peers coming and going
+    // between pages don't shift the rest under the cursor.
+    private void writePeers(ByteBuffer out, String fileName, String cursor, int requestId) {
+        int total = fileIndex.count(fileName);
+        if (total == 0) {
+            TrackerProtocol.putHeader(out, TrackerProtocol.OP_NOT_FOUND, requestId);
+            return;
+        }
+        TrackerProtocol.putHeader(out, TrackerProtocol.OP_PEERS, requestId);
+        TrackerProtocol.putHash(out, fileIndex.rootHash(fileName));
+        out.putInt(total);
+        PeerPage page = peerPages.get();
+        // less the count; the cursor goes in front of the addresses once the page is known
+        int room = out.remaining() - 2;
+        int written = 0;
+        String last = null;
+        boolean more = false;
+        for (String peerKey : fileIndex.peersAfter(fileName, cursor)) {
+            PeerInfo peer = peers.get(peerKey);
+            Integer filePort = peer == null ? null : peer.getSharedFiles().get(fileName);
+            if (filePort == null) {
+                continue;
+            }
+            int size = TrackerProtocol.addressSize(peer.getIp());
+            // peer keys are ASCII, so this is their encoded length
+            if (room < size + 1 + peerKey.length()) {
+                more = true;
+                break;
+            }
+            room -= size;
+            last = peerKey;
+            page.add(written++, peer, filePort);
+        }
+        TrackerProtocol.putString(out, more && last != null ? last : "");
+        out.putShort((short) written);
+        // pages are ranked on their own, so paging stays a plain walk over the index
+        page.sort(written);
+        for (int i = 0; i < written; i++) {
+            TrackerProtocol.putAddress(out, page.peers[i].getIp(), page.ports[i]);
+            page.peers[i] = null;
+        }
+    }
+
+    // scratch space for one page of a binary peer list, kept per thread so ranking doesn't allocate
+    private static final class PeerPage {
+        final PeerInfo[] peers = new PeerInfo[TrackerProtocol.MAX_DATAGRAM];
+        final int[] ports = new int[TrackerProtocol.MAX_DATAGRAM];
+        final long[] ranks = new long[TrackerProtocol.MAX_DATAGRAM];
+
+        void add(int index, PeerInfo peer, int port) {
+            peers[index] = peer;
+            ports[index] = port;
+            ranks[index] = peer.rank();
+        }
 
-            /*
-             * String trackerResponse = requestFileFromOtherTrackers(fileName);
-             * if (!trackerResponse.equals("File not found")) {
-             * String[] trackerIps = trackerResponse.split(", ");
-             * trackerLock.lock();
-             * try {
-             * for (String trackerIp : trackerIps) {
-             * if (!otherTrackers.contains(trackerIp)) {
-             * otherTrackers.add(trackerIp);
-             * }
-             * }
-             * } finally {
-             * trackerLock.unlock();
-             * }
-             * return trackerResponse;
-             * }
-             */
-
-            return "File not found";
+        // insertion sort, a page holds a couple of hundred peers at most
+        void sort(int count) {
+            for (int i = 1; i < count; i++) {
+                PeerInfo peer = peers[i];
+                int port = ports[i];
+                long rank = ranks[i];
+                int j = i - 1;
+                while (j >= 0 && ranks[j] > rank) {
+                    peers[j + 1] = peers[j];
+                    ports[j + 1] = ports[j];
+                    ranks[j + 1] = ranks[j];
+                    j--;
+                }
+                peers[j + 1] = peer;
+                ports[j + 1] = port;
+                ranks[j + 1] = rank;
+            }
+        }
+    }
+
+    private final ThreadLocal<PeerPage> peerPages = ThreadLocal.withInitial(PeerPage::new);
+
+    private boolean registerFile(InetAddress address, int port, int serverPort, int pingPort, String fileName,
+            int filePort, String rootHash) {
+        return registerFile(address, port, serverPort, pingPort, fileName, filePort, rootHash, true);
+    }
+
+    // repeated identical registrations change nothing and aren't logged again
+    boolean registerFile(InetAddress address, int port, int serverPort, int pingPort, String fileName,
+            int filePort, String rootHash, boolean logged) {
+        String peerKey = address.toString() + ":" + serverPort;
+        Lock lock = peerLock(peerKey);
+        lock.lock();
+        try {
+            PeerInfo known = peers.get(peerKey);
+            PeerInfo peer = known != null ? known
+                    : peers.computeIfAbsent(peerKey, k -> new PeerInfo(address, port, serverPort, pingPort));
+            if (!fileIndex.add(fileName, peerKey, rootHash)) {
+                // a peer that only ever offered conflicting content isn't kept around, to be probed, sharing nothing
+                if (known == null && peer.getSharedFiles().isEmpty()) {
+                    peers.remove(peerKey, peer);
+                }
+                return false;
+            }
+            // a share is as good a sign of life as a keepalive, and outweighs a probe still in flight
+            peer.updateLastSeen();
+            Integer previous = peer.getSharedFiles().put(fileName, filePort);
+            if (logged && (previous == null || previous != filePort)) {
+                store.logRegister(address, peer.getListenPort(), serverPort, peer.getPingPort(), fileName, filePort,
+                        rootHash);
+            }
+            return true;
         } finally {
-            peerLock.readLock().unlock();
-        }
-    }
-
-    /*
-     * private String requestFileFromOtherTrackers(String fileName) {
-     * for (String tracker : otherTrackers) {
-     * try (Socket socket = new Socket(tracker,
-     * TCP_PORT_FILE_REQUESTS_FROM_OTHER_TRAKCERS);
-     * PrintWriter writer = new PrintWriter(socket.getOutputStream(), true);
-     * BufferedReader reader = new BufferedReader(new
-     * InputStreamReader(socket.getInputStream()))) {
-     * writer.println(fileName);
-     * String response = reader.readLine();
-     * if (response != null && !response.equals("File not found")) {
-     * return response;
-     * }
-     * } catch (IOException e) {
-     * e.printStackTrace();
-     * }
-     * }
-     * return "File not found";
-     * }
-     */
+            lock.unlock();
+        }
+    }
+
+    String getPeersWithFile(String fileName) {
+        List<RankedPeer> holders = new ArrayList<>(fileIndex.count(fileName));
+        for (String peerKey : fileIndex.peersWith(fileName)) {
+            PeerInfo peer = peers.get(peerKey);
+            Integer filePort = peer == null ? null : peer.getSharedFiles().get(fileName);
+            if (filePort != null) {
+                holders.add(new RankedPeer(peer, filePort));
+            }
+        }
+        holders.sort(Comparator.comparingLong(holder -> holder.rank));
+        List<String> peerList = new ArrayList<>(holders.size());
+        for (RankedPeer holder : holders) {
+            peerList.add(holder.peer.getIp().getHostAddress() + ":" + holder.port);
+        }
+        if (!peerList.isEmpty()) {
+            String rootHash = fileIndex.rootHash(fileName);
+            return rootHash == null ? String.join(", ", peerList)
+                    : String.join(", ", peerList) + " root=" + rootHash;
+        }
+
+        return "File not found";
+    }
 
     private void checkPeerHealth() {
-        StringBuilder builder = new StringBuilder();
-        while (true) {
-            try {
-                Thread.sleep(PEER_CHECK_INTERVAL_MS);
-                // System.out.println("stareted checking health with " + peers.size() + " peers
-                // !");
-                List<String> toRemove = new ArrayList<>();
-
-                peerLock.readLock().lock();
-                try {
-                    for (Map.Entry<String, PeerInfo> entry : peers.entrySet()) {
-                        if (!isPeerAlive(entry.getValue())) {
-                            toRemove.add(entry.getKey());
-                        }
-                    }
-                } finally {
-                    peerLock.readLock().unlock();
+        prober = new PeerProber(peers, this::evictPeer, PEER_CHECK_INTERVAL_MS, PROBE_TIMEOUT_MS, PROBE_ATTEMPTS);
+        prober.run();
+    }
+
+    // runs on the lease thread; a keepalive may have renewed the lease since it fired
+    private boolean expireLease(PeerInfo peer) {
+        String peerKey = peer.key();
+        Lock lock = peerLock(peerKey);
+        lock.lock();
+        try {
+            if (peers.get(peerKey) != peer || leases.renewed(peer)) {
+                return false;
+            }
+            removePeer(peerKey, true);
+        } finally {
+            lock.unlock();
+        }
+        log(EventLog.Type.EVICT, peer.getIp(), null, "lease expired : " + peerKey);
+        return true;
+    }
+
+    // runs on the prober thread; a keepalive or share may have come in while the probe was unanswered
+    private void evictPeer(String peerKey, long probedSince) {
+        PeerInfo removed;
+        Lock lock = peerLock(peerKey);
+        lock.lock();
+        try {
+            PeerInfo peer = peers.get(peerKey);
+            if (peer == null || leases.renewed(peer) || peer.getLastSeen() >= probedSince) {
+                return;
+            }
+            removed = removePeer(peerKey, true);
+        } finally {
+            lock.unlock();
+        }
+        if (removed != null) {
+            log(EventLog.Type.EVICT, removed.getIp(), null, "dead peer : " + peerKey);
+        }
+    }
+
+    private PeerInfo removePeer(String peerKey, boolean logged) {
+        Lock lock = peerLock(peerKey);
+        lock.lock();
+        try {
+            PeerInfo removed = peers.remove(peerKey);
+            if (removed != null) {
+                leases.cancel(removed);
+                fileIndex.removePeer(peerKey, removed.getSharedFiles().keySet());
+                if (logged) {
+                    store.logEvict(peerKey);
                 }
+            }
+            return removed;
+        } finally {
+            lock.unlock();
+        }
+    }
 
-                peerLock.writeLock().lock();
-                builder = new StringBuilder();
-                try {
-                    for (String key : toRemove) {
-                        builder.append(key);
-                        peers.remove(key);
-                    }
-                    log("dead peers : " + builder.toString());
-                    builder = new StringBuilder();
-                    for (String key : peers.keySet()) {
-                        builder.append(key + " ");
-                    }
-                    log("alive peers : " + builder.toString());
-                } finally {
-                    peerLock.writeLock().unlock();
+    // moves the registrations of files this tracker no longer owns to their new owner
+    private void rebalance() {
+        try {
+            HashRing ring = cluster.ring();
+            for (String fileName : fileIndex.fileNames()) {
+                String owner = ring.owner(fileName);
+                if (owner == null || owner.equals(cluster.self())) {
+                    continue;
                 }
-            } catch (InterruptedException e) {
-                Thread.currentThread().interrupt();
+                handOff(owner, fileName);
             }
+        } catch (RuntimeException e) {
+            e.printStackTrace();
         }
     }
 
-    private boolean isPeerAlive(PeerInfo peer) {
-        for (int i = 0; i < 3; ++i) {
-            try (DatagramSocket socket = new DatagramSocket()) {
-                byte[] pingMessage = "Are you still alive?".getBytes();
-                DatagramPacket packet = new DatagramPacket(pingMessage, pingMessage.length, peer.getIp(),
-                        peer.pingPort);
-                socket.send(packet);
+    private void handOff(String owner, String fileName) {
+        List<String> peerKeys = new ArrayList<>();
+        List<PeerInfo> holders = new ArrayList<>();
+        List<Integer> filePorts = new ArrayList<>();
+        for (String peerKey : fileIndex.peersWith(fileName)) {
+            PeerInfo peer = peers.get(peerKey);
+            Integer filePort = peer == null ? null : peer.getSharedFiles().get(fileName);
+            if (filePort != null) {
+                peerKeys.add(peerKey);
+                holders.add(peer);
+                filePorts.add(filePort);
+            }
+        }
+        String rootHash = fileIndex.rootHash(fileName);
+        try {
+            cluster.call(owner, Cluster.OP_HANDOFF, out -> {
+                out.writeUTF(fileName);
+                out.writeBoolean(rootHash != null);
+                if (rootHash != null) {
+                    out.writeUTF(rootHash);
+                }
+                out.writeInt(holders.size());
+                for (int i = 0; i < holders.size(); i++) {
+                    PeerInfo peer = holders.get(i);
+                    byte[] ip = peer.getIp().getAddress();
+                    out.writeByte(ip.length);
+                    out.write(ip);
+                    out.writeShort(peer.getListenPort());
+                    out.writeShort(peer.getServerPort());
+                    out.writeShort(peer.getPingPort());
+                    out.writeShort(filePorts.get(i));
+                }
+            }, DataInputStream::readBoolean);
+        } catch (IOException e) {
+            System.out.println("Couldn't hand " + fileName + " off to " + owner + ": " + e.getMessage());
+            return;
+        }
+        for (String peerKey : peerKeys) {
+            releaseFile(peerKey, fileName, true);
+        }
+        log(EventLog.Type.INFO, null, fileName, "handed off to " + owner);
+    }
 
-                socket.setSoTimeout(5000);
-                byte[] buffer = new byte[BUFFER_SIZE];
-                DatagramPacket responsePacket = new DatagramPacket(buffer, buffer.length);
-                socket.receive(responsePacket);
-                String response = new String(responsePacket.getData(), 0, responsePacket.getLength()).trim();
-                return "yep , I am still alive.".equals(response);
-            } catch (IOException e) {
-                return false;
+    private void releaseFile(String peerKey, String fileName, boolean logged) {
+        Lock lock = peerLock(peerKey);
+        lock.lock();
+        try {
+            fileIndex.remove(fileName, peerKey);
+            PeerInfo peer = peers.get(peerKey);
+            if (peer != null && peer.getSharedFiles().remove(fileName) != null) {
+                if (peer.getSharedFiles().isEmpty()) {
+                    peers.remove(peerKey);
+                    leases.cancel(peer);
+                }
+                if (logged) {
+                    store.logRelease(peerKey, fileName);
+                }
             }
+        } finally {
+            lock.unlock();
         }
-        return false;
+        if (logged) {
+            store.sync();
+        }
+    }
+
+    FileIndex getFileIndex() {
+        return fileIndex;
     }
 }
@@ -0,0 +1,328 @@
+package Tracker;
+
+import com.sun.net.httpserver.HttpServer;
+
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.math.BigDecimal;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+import Common.TrackerProtocol;
+
+// Request counters and latency histograms for the tracker. Recording only touches LongAdders,
+// so it takes no locks and allocates nothing; reading sums them up.
+class TrackerMetrics implements TrackerMetricsMBean {
+    // upper bounds in nanoseconds; the last bucket catches everything slower
+    private static final long[] BOUNDS = { 50_000, 100_000, 250_000, 500_000, 1_000_000, 2_500_000, 5_000_000,
+            10_000_000, 25_000_000, 50_000_000, 100_000_000, 250_000_000, 500_000_000, 1_000_000_000 };
+
+    enum Command {
+        SHARE, GET, ACK, KEEPALIVE, INVALID
+    }
+
+    static final class Histogram {
+        private final LongAdder[] buckets = new LongAdder[BOUNDS.length + 1];
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sumNanos = new LongAdder();
+
+        Histogram() {
+            for (int i = 0; i < buckets.length; i++) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        void record(long nanos) {
+            int i = 0;
+            while (i < BOUNDS.length && nanos > BOUNDS[i]) {
+                i++;
+            }
+            buckets[i].increment();
+            count.increment();
+            sumNanos.add(nanos);
+        }
+
+        long count() {
+            return count.sum();
+        }
+
+        double percentileMicros(double percentile) {
+            long total = count.sum();
+            if (total == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(total * percentile / 100.0);
+            long seen = 0;
+            for (int i = 0; i < BOUNDS.length; i++) {
+                seen += buckets[i].sum();
+                if (seen >= rank) {
+                    return BOUNDS[i] / 1000.0;
+                }
+            }
+            return Double.POSITIVE_INFINITY;
+        }
+    }
+
+    // a value owned by some other part of the tracker, read only when metrics are collected
+    private static final class Gauge {
+        final String help;
+        final String type;
+        final LongSupplier value;
+
+        Gauge(String help, String type, LongSupplier value) {
+            this.help = help;
+            this.type = type;
+            this.value = value;
+        }
+    }
+
+    private final Histogram[] latencies = new Histogram[Command.values().length];
+    private final LongAdder forwarded = new LongAdder();
+    private final LongAdder truncated = new LongAdder();
+    private final Map<String, Gauge> gauges = new LinkedHashMap<>();
+    private HttpServer server;
+
+    TrackerMetrics() {
+        for (int i = 0; i < latencies.length; i++) {
+            latencies[i] = new Histogram();
+        }
+    }
+
+    synchronized void gauge(String name, String help, LongSupplier value) {
+        gauges.put(name, new Gauge(help, "gauge", value));
+    }
+
+    // for values that only ever grow, such as the front end's drop counter
+    synchronized void counter(String name, String help, LongSupplier value) {
+        gauges.put(name, new Gauge(help, "counter", value));
+    }
+
+    // looks at the first bytes only, so nothing is decoded
+    static Command classify(ByteBuffer data) {
+        int start = data.position();
+        if (TrackerProtocol.isBinary(data)) {
+            byte op = data.get(start + 2);
+            return op == TrackerProtocol.OP_SHARE ? Command.SHARE
+                    : op == TrackerProtocol.OP_GET ? Command.GET
+                            : op == TrackerProtocol.OP_ACK ? Command.ACK
+                                    : op == TrackerProtocol.OP_KEEPALIVE ? Command.KEEPALIVE : Command.INVALID;
+        }
+        while (start < data.limit() && data.get(start) <= ' ') {
+            start++;
+        }
+        if (startsWith(data, start, "share")) {
+            return Command.SHARE;
+        }
+        if (startsWith(data, start, "get")) {
+            return Command.GET;
+        }
+        return startsWith(data, start, "ack") ? Command.ACK : Command.INVALID;
+    }
+
+    private static boolean startsWith(ByteBuffer data, int start, String prefix) {
+        if (data.limit() - start < prefix.length()) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length(); i++) {
+            if (data.get(start + i) != prefix.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    void record(Command command, long nanos) {
+        latencies[command.ordinal()].record(nanos);
+    }
+
+    void forwarded() {
+        forwarded.increment();
+    }
+
+    void truncated() {
+        truncated.increment();
+    }
+
+    void register(int udpPort) {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(
+                    new StandardMBean(this, TrackerMetricsMBean.class),
+                    new ObjectName("Tracker:type=TrackerMetrics,port=" + udpPort));
+        } catch (Exception e) {
+            System.out.println("Couldn't register tracker metrics with JMX: " + e.getMessage());
+        }
+    }
+
+    // serves the Prometheus text format on 127.0.0.1 only
+    void serve(int port) {
+        try {
+            server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+            server.createContext("/metrics", exchange -> {
+                byte[] body = render().getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+                exchange.sendResponseHeaders(200, body.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(body);
+                }
+            });
+            server.start();
+            System.out.println("Metrics on http://127.0.0.1:" + port + "/metrics");
+        } catch (IOException e) {
+            System.out.println("Couldn't serve metrics on port " + port + ": " + e.getMessage());
+        }
+    }
+
+    String render() {
+        StringBuilder out = new StringBuilder(4096);
+        out.append("# HELP tracker_requests_total Requests handled, by command.\n");
+        out.append("# TYPE tracker_requests_total counter\n");
+        for (Command command : Command.values()) {
+            out.append("tracker_requests_total{command=\"").append(label(command)).append("\"} ")
+                    .append(latencies[command.ordinal()].count()).append('\n');
+        }
+        out.append("# HELP tracker_request_duration_seconds Time spent handling a request, by command.\n");
+        out.append("# TYPE tracker_request_duration_seconds histogram\n");
+        for (Command command : Command.values()) {
+            Histogram histogram = latencies[command.ordinal()];
+            String label = label(command);
+            long cumulative = 0;
+            for (int i = 0; i <= BOUNDS.length; i++) {
+                cumulative += histogram.buckets[i].sum();
+                out.append("tracker_request_duration_seconds_bucket{command=\"").append(label).append("\",le=\"")
+                        .append(i < BOUNDS.length ? seconds(BOUNDS[i]) : "+Inf").append("\"} ").append(cumulative)
+                        .append('\n');
+            }
+            out.append("tracker_request_duration_seconds_sum{command=\"").append(label).append("\"} ")
+                    .append(seconds(histogram.sumNanos.sum())).append('\n');
+            out.append("tracker_request_duration_seconds_count{command=\"").append(label).append("\"} ")
+                    .append(histogram.count()).append('\n');
+        }
+        counter(out, "tracker_forwarded_requests_total", "Requests forwarded to the tracker owning the file.",
+                forwarded.sum());
+        counter(out, "tracker_truncated_replies_total",
+                "Text replies larger than one datagram, which old clients cut short.", truncated.sum());
+        synchronized (this) {
+            for (Map.Entry<String, Gauge> gauge : gauges.entrySet()) {
+                out.append("# HELP ").append(gauge.getKey()).append(' ').append(gauge.getValue().help).append('\n');
+                out.append("# TYPE ").append(gauge.getKey()).append(' ').append(gauge.getValue().type)
+                        .append('\n');
+                out.append(gauge.getKey()).append(' ').append(gauge.getValue().value.getAsLong()).append('\n');
+            }
+        }
+        return out.toString();
+    }
+
+    private static void counter(StringBuilder out, String name, String help, long value) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(" counter\n");
+        out.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static String label(Command command) {
+        return command.toString().toLowerCase(Locale.ROOT);
+    }
+
+    private static String seconds(long nanos) {
+        return BigDecimal.valueOf(nanos, 9).stripTrailingZeros().toPlainString();
+    }
+
+    private synchronized long gaugeValue(String name) {
+        Gauge gauge = gauges.get(name);
+        return gauge == null ? 0 : gauge.value.getAsLong();
+    }
+
+    @Override
+    public long getShareRequests() {
+        return latencies[Command.SHARE.ordinal()].count();
+    }
+
+    @Override
+    public long getGetRequests() {
+        return latencies[Command.GET.ordinal()].count();
+    }
+
+    @Override
+    public long getAckRequests() {
+        return latencies[Command.ACK.ordinal()].count();
+    }
+
+    @Override
+    public long getKeepaliveRequests() {
+        return latencies[Command.KEEPALIVE.ordinal()].count();
+    }
+
+    @Override
+    public long getInvalidRequests() {
+        return latencies[Command.INVALID.ordinal()].count();
+    }
+
+    @Override
+    public long getForwardedRequests() {
+        return forwarded.sum();
+    }
+
+    @Override
+    public long getTruncatedReplies() {
+        return truncated.sum();
+    }
+
+    @Override
+    public long getPeerCount() {
+        return gaugeValue("tracker_peers");
+    }
+
+    @Override
+    public long getFileCount() {
+        return gaugeValue("tracker_files");
+    }
+
+    @Override
+    public long getRegistrationCount() {
+        return gaugeValue("tracker_registrations");
+    }
+
+    @Override
+    public long getLastSweepMs() {
+        return gaugeValue("tracker_health_sweep_milliseconds");
+    }
+
+    @Override
+    public long getProbeTimeouts() {
+        return gaugeValue("tracker_probe_timeouts_total");
+    }
+
+    @Override
+    public long getLeaseCount() {
+        return gaugeValue("tracker_leases");
+    }
+
+    @Override
+    public long getLeaseExpiries() {
+        return gaugeValue("tracker_lease_expiries_total");
+    }
+
+    @Override
+    public long getDroppedPackets() {
+        return gaugeValue("tracker_dropped_packets_total");
+    }
+
+    @Override
+    public long getUnsentReplies() {
+        return gaugeValue("tracker_unsent_replies_total");
+    }
+
+    @Override
+    public double latencyPercentileMicros(String command, double percentile) {
+        return latencies[Command.valueOf(command.toUpperCase(Locale.ROOT)).ordinal()].percentileMicros(percentile);
+    }
+}
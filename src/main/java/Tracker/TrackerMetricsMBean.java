@@ -0,0 +1,38 @@
+package Tracker;
+
+public interface TrackerMetricsMBean {
+    long getShareRequests();
+
+    long getGetRequests();
+
+    long getAckRequests();
+
+    long getKeepaliveRequests();
+
+    long getInvalidRequests();
+
+    long getForwardedRequests();
+
+    long getTruncatedReplies();
+
+    long getPeerCount();
+
+    long getFileCount();
+
+    long getRegistrationCount();
+
+    long getLastSweepMs();
+
+    long getProbeTimeouts();
+
+    long getLeaseCount();
+
+    long getLeaseExpiries();
+
+    long getDroppedPackets();
+
+    long getUnsentReplies();
+
+    // upper bound of the histogram bucket holding the given percentile, in microseconds
+    double latencyPercentileMicros(String command, double percentile);
+}
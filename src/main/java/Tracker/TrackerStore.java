@@ -0,0 +1,441 @@
+package Tracker;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.CRC32C;
+
+// Write-ahead log of registrations plus periodic snapshots. Log records are
+// [length][crc32c][type][fields...]; replay stops at the first torn or corrupt record.
+// Every record is an idempotent assignment, so replaying the log over a snapshot that
+// already contains some of its changes still ends in the right state.
+class TrackerStore {
+    private static final byte REGISTER = 1;
+    private static final byte RELEASE = 2;
+    private static final byte EVICT = 3;
+    private static final int SNAPSHOT_MAGIC = 0x54534e31;
+    private static final int MAX_BATCH = 4096;
+    private static final int QUEUE_SIZE = 65536;
+    private static final long SNAPSHOT_AFTER_BYTES = 64L << 20;
+    private static final long SNAPSHOT_INTERVAL_MS = 5 * 60 * 1000;
+    private static final String SNAPSHOT_FILE = "snapshot.dat";
+
+    interface Target {
+        void register(InetAddress address, int listenPort, int serverPort, int pingPort, String fileName,
+                int filePort, String rootHash);
+
+        void release(String peerKey, String fileName);
+
+        void evict(String peerKey);
+    }
+
+    private static final class Record {
+        final byte[] data;
+        final long seq;
+        final CompletableFuture<Long> rotated;
+
+        Record(byte[] data, long seq, CompletableFuture<Long> rotated) {
+            this.data = data;
+            this.seq = seq;
+            this.rotated = rotated;
+        }
+    }
+
+    private final Path dir;
+    private final boolean syncWrites;
+    private final Map<String, Tracker.PeerInfo> peers;
+    private final FileIndex fileIndex;
+    private final BlockingQueue<Record> queue = new LinkedBlockingQueue<>(QUEUE_SIZE);
+    private final Object appendLock = new Object();
+    private final Object durableLock = new Object();
+    private final ThreadLocal<long[]> lastAppended = ThreadLocal.withInitial(() -> new long[1]);
+    private final AtomicBoolean snapshotting = new AtomicBoolean();
+    private final ScheduledExecutorService snapshotter = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "tracker-snapshot");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private long nextSeq;
+    private volatile long durableSeq;
+    private volatile boolean failed;
+    private long generation;
+    private FileChannel wal;
+    private volatile long walBytes;
+
+    TrackerStore(Path dir, boolean syncWrites, Map<String, Tracker.PeerInfo> peers, FileIndex fileIndex) {
+        this.dir = dir;
+        this.syncWrites = syncWrites;
+        this.peers = peers;
+        this.fileIndex = fileIndex;
+    }
+
+    // loads the snapshot and replays the log after it, then starts logging into a fresh segment
+    void recover(Target target) throws IOException {
+        try {
+            load(target);
+        } catch (IOException | RuntimeException e) {
+            failed = true;
+            throw e;
+        }
+        Thread writer = new Thread(this::writeLoop, "tracker-wal");
+        writer.setDaemon(true);
+        writer.start();
+        snapshotter.scheduleWithFixedDelay(this::snapshot, SNAPSHOT_INTERVAL_MS, SNAPSHOT_INTERVAL_MS,
+                TimeUnit.MILLISECONDS);
+    }
+
+    private void load(Target target) throws IOException {
+        Files.createDirectories(dir);
+        long start = System.currentTimeMillis();
+        long snapshotGeneration = 0;
+        long restored = 0;
+        Path snapshot = dir.resolve(SNAPSHOT_FILE);
+        if (Files.exists(snapshot)) {
+            try (FileChannel channel = FileChannel.open(snapshot, StandardOpenOption.READ)) {
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                if (buffer.getInt() != SNAPSHOT_MAGIC) {
+                    throw new IOException("Not a tracker snapshot: " + snapshot);
+                }
+                snapshotGeneration = buffer.getLong();
+                restored = readSnapshot(buffer, target);
+            }
+        }
+        long replayed = 0;
+        long lastGeneration = snapshotGeneration;
+        for (Path segment : segments()) {
+            long segmentGeneration = generationOf(segment);
+            lastGeneration = Math.max(lastGeneration, segmentGeneration);
+            if (segmentGeneration >= snapshotGeneration) {
+                replayed += replay(segment, target);
+            }
+        }
+        generation = lastGeneration + 1;
+        wal = openSegment(generation);
+        System.out.println("Recovered " + restored + " registration(s) from snapshot and " + replayed
+                + " log record(s) in " + (System.currentTimeMillis() - start) + " ms");
+    }
+
+    void logRegister(InetAddress address, int listenPort, int serverPort, int pingPort, String fileName,
+            int filePort, String rootHash) {
+        byte[] ip = address.getAddress();
+        byte[] name = fileName.getBytes(StandardCharsets.UTF_8);
+        byte[] hash = rootHash == null ? new byte[0] : unhex(rootHash);
+        ByteBuffer record = ByteBuffer.allocate(1 + 1 + ip.length + 8 + 2 + name.length + 1 + hash.length);
+        record.put(REGISTER).put((byte) ip.length).put(ip).putShort((short) listenPort).putShort((short) serverPort)
+                .putShort((short) pingPort).putShort((short) filePort).putShort((short) name.length).put(name)
+                .put((byte) hash.length).put(hash);
+        append(record.array());
+    }
+
+    void logRelease(String peerKey, String fileName) {
+        byte[] key = peerKey.getBytes(StandardCharsets.UTF_8);
+        byte[] name = fileName.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer record = ByteBuffer.allocate(1 + 2 + key.length + 2 + name.length);
+        record.put(RELEASE).putShort((short) key.length).put(key).putShort((short) name.length).put(name);
+        append(record.array());
+    }
+
+    void logEvict(String peerKey) {
+        byte[] key = peerKey.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer record = ByteBuffer.allocate(1 + 2 + key.length);
+        record.put(EVICT).putShort((short) key.length).put(key);
+        append(record.array());
+    }
+
+    private void append(byte[] data) {
+        if (failed) {
+            return;
+        }
+        try {
+            // sequence numbers and queue order must agree for durableSeq to mean anything
+            synchronized (appendLock) {
+                long seq = ++nextSeq;
+                queue.put(new Record(data, seq, null));
+                lastAppended.get()[0] = seq;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // waits until everything this thread logged is on disk; concurrent callers share one force()
+    void sync() {
+        long seq = lastAppended.get()[0];
+        if (!syncWrites || seq <= durableSeq) {
+            return;
+        }
+        synchronized (durableLock) {
+            while (durableSeq < seq && !failed) {
+                try {
+                    durableLock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    private void writeLoop() {
+        List<Record> batch = new ArrayList<>(MAX_BATCH);
+        ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 20);
+        CRC32C crc = new CRC32C();
+        try {
+            while (true) {
+                batch.add(queue.take());
+                queue.drainTo(batch, MAX_BATCH - 1);
+                long lastSeq = durableSeq;
+                for (Record record : batch) {
+                    if (record.rotated != null) {
+                        flush(buffer);
+                        rotate();
+                        record.rotated.complete(generation);
+                        continue;
+                    }
+                    int size = 8 + record.data.length;
+                    if (buffer.remaining() < size) {
+                        flush(buffer);
+                        if (buffer.capacity() < size) {
+                            buffer = ByteBuffer.allocateDirect(size);
+                        }
+                    }
+                    crc.reset();
+                    crc.update(record.data);
+                    buffer.putInt(record.data.length).putInt((int) crc.getValue()).put(record.data);
+                    lastSeq = record.seq;
+                }
+                flush(buffer);
+                if (syncWrites) {
+                    wal.force(false);
+                }
+                batch.clear();
+                synchronized (durableLock) {
+                    durableSeq = lastSeq;
+                    durableLock.notifyAll();
+                }
+                if (walBytes >= SNAPSHOT_AFTER_BYTES) {
+                    snapshotter.execute(this::snapshot);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            System.out.println("Tracker log stopped, registrations are no longer persisted: " + e.getMessage());
+        } finally {
+            synchronized (durableLock) {
+                failed = true;
+                durableLock.notifyAll();
+            }
+        }
+    }
+
+    private void flush(ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            walBytes += wal.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    private void rotate() throws IOException {
+        wal.force(false);
+        wal.close();
+        generation++;
+        wal = openSegment(generation);
+    }
+
+    // switches to a new log segment, writes everything the tracker knows, then drops the older segments
+    void snapshot() {
+        if (failed || !snapshotting.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            CompletableFuture<Long> rotated = new CompletableFuture<>();
+            synchronized (appendLock) {
+                queue.put(new Record(null, nextSeq, rotated));
+            }
+            long snapshotGeneration = rotated.get();
+            Path tmp = dir.resolve(SNAPSHOT_FILE + ".tmp");
+            long count = 0;
+            try (FileOutputStream stream = new FileOutputStream(tmp.toFile());
+                    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream, 1 << 16))) {
+                out.writeInt(SNAPSHOT_MAGIC);
+                out.writeLong(snapshotGeneration);
+                for (Tracker.PeerInfo peer : peers.values()) {
+                    List<Map.Entry<String, Integer>> files = new ArrayList<>(peer.getSharedFiles().entrySet());
+                    byte[] ip = peer.getIp().getAddress();
+                    out.writeByte(1);
+                    out.writeByte(ip.length);
+                    out.write(ip);
+                    out.writeShort(peer.getListenPort());
+                    out.writeShort(peer.getServerPort());
+                    out.writeShort(peer.getPingPort());
+                    out.writeInt(files.size());
+                    for (Map.Entry<String, Integer> file : files) {
+                        byte[] name = file.getKey().getBytes(StandardCharsets.UTF_8);
+                        String rootHash = fileIndex.rootHash(file.getKey());
+                        byte[] hash = rootHash == null ? new byte[0] : unhex(rootHash);
+                        out.writeShort(name.length);
+                        out.write(name);
+                        out.writeShort(file.getValue());
+                        out.writeByte(hash.length);
+                        out.write(hash);
+                        count++;
+                    }
+                }
+                out.writeByte(0);
+                out.flush();
+                stream.getFD().sync();
+            }
+            Files.move(tmp, dir.resolve(SNAPSHOT_FILE), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            for (Path segment : segments()) {
+                if (generationOf(segment) < snapshotGeneration) {
+                    Files.deleteIfExists(segment);
+                }
+            }
+            System.out.println("Tracker snapshot written with " + count + " registration(s)");
+        } catch (IOException | ExecutionException e) {
+            System.out.println("Couldn't write tracker snapshot: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            snapshotting.set(false);
+        }
+    }
+
+    void close() {
+        snapshotter.shutdownNow();
+    }
+
+    private static long readSnapshot(ByteBuffer buffer, Target target) throws IOException {
+        long count = 0;
+        while (buffer.get() == 1) {
+            InetAddress address = InetAddress.getByAddress(bytes(buffer, buffer.get() & 0xff));
+            int listenPort = buffer.getShort() & 0xffff;
+            int serverPort = buffer.getShort() & 0xffff;
+            int pingPort = buffer.getShort() & 0xffff;
+            int files = buffer.getInt();
+            for (int i = 0; i < files; i++) {
+                String fileName = string(buffer, buffer.getShort() & 0xffff);
+                int filePort = buffer.getShort() & 0xffff;
+                String rootHash = hex(buffer, buffer.get() & 0xff);
+                target.register(address, listenPort, serverPort, pingPort, fileName, filePort, rootHash);
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static long replay(Path segment, Target target) throws IOException {
+        long count = 0;
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            CRC32C crc = new CRC32C();
+            int valid = 0;
+            while (buffer.remaining() >= 8) {
+                int length = buffer.getInt();
+                int checksum = buffer.getInt();
+                if (length <= 0 || length > buffer.remaining()) {
+                    break;
+                }
+                ByteBuffer record = buffer.slice(buffer.position(), length);
+                crc.reset();
+                crc.update(record.duplicate());
+                if ((int) crc.getValue() != checksum) {
+                    break;
+                }
+                apply(record, target);
+                buffer.position(buffer.position() + length);
+                valid = buffer.position();
+                count++;
+            }
+            if (valid < channel.size()) {
+                System.out.println("Dropping torn tail of " + segment.getFileName() + " at offset " + valid);
+                channel.truncate(valid);
+            }
+        }
+        return count;
+    }
+
+    private static void apply(ByteBuffer record, Target target) throws IOException {
+        byte type = record.get();
+        if (type == REGISTER) {
+            InetAddress address = InetAddress.getByAddress(bytes(record, record.get() & 0xff));
+            int listenPort = record.getShort() & 0xffff;
+            int serverPort = record.getShort() & 0xffff;
+            int pingPort = record.getShort() & 0xffff;
+            int filePort = record.getShort() & 0xffff;
+            String fileName = string(record, record.getShort() & 0xffff);
+            String rootHash = hex(record, record.get() & 0xff);
+            target.register(address, listenPort, serverPort, pingPort, fileName, filePort, rootHash);
+        } else if (type == RELEASE) {
+            String peerKey = string(record, record.getShort() & 0xffff);
+            target.release(peerKey, string(record, record.getShort() & 0xffff));
+        } else if (type == EVICT) {
+            target.evict(string(record, record.getShort() & 0xffff));
+        } else {
+            throw new IOException("Unknown log record type " + type);
+        }
+    }
+
+    private List<Path> segments() throws IOException {
+        List<Path> segments = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, "wal-*.log")) {
+            for (Path segment : stream) {
+                segments.add(segment);
+            }
+        }
+        segments.sort(Comparator.comparingLong(TrackerStore::generationOf));
+        return segments;
+    }
+
+    private static long generationOf(Path segment) {
+        String name = segment.getFileName().toString();
+        return Long.parseLong(name.substring("wal-".length(), name.length() - ".log".length()));
+    }
+
+    private FileChannel openSegment(long generation) throws IOException {
+        walBytes = 0;
+        return FileChannel.open(dir.resolve(String.format("wal-%08d.log", generation)), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    private static byte[] bytes(ByteBuffer buffer, int length) {
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    private static String string(ByteBuffer buffer, int length) {
+        return new String(bytes(buffer, length), StandardCharsets.UTF_8);
+    }
+
+    private static String hex(ByteBuffer buffer, int length) {
+        if (length == 0) {
+            return null;
+        }
+        StringBuilder builder = new StringBuilder(length * 2);
+        for (int i = 0; i < length; i++) {
+            int b = buffer.get() & 0xff;
+            builder.append(Character.forDigit(b >>> 4, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return builder.toString();
+    }
+
+    private static byte[] unhex(String hex) {
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) ((Character.digit(hex.charAt(i * 2), 16) << 4)
+                    | Character.digit(hex.charAt(i * 2 + 1), 16));
+        }
+        return bytes;
+    }
+}